@@ -0,0 +1,88 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sample payloads shaped like the ones the SDK builds in logEvent.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {}
+
+    static JSONObject event(long id) throws JSONException {
+        JSONObject properties = new JSONObject();
+        properties.put("_id", UUID.randomUUID().toString());
+        properties.put("_local_id", id);
+        properties.put("_time", 1500000000000L + id);
+        properties.put("_user", "user@example.com");
+        properties.put("_device_id", "3b5c5f8c-8b25-4dfd-9e2d-0b8e5c6bcf12R");
+        properties.put("_session_id", 1500000000000L);
+        properties.put("_version_name", "4.2.1");
+        properties.put("_os_name", "android");
+        properties.put("_os_version", "8.1.0");
+        properties.put("_device_brand", "google");
+        properties.put("_device_manufacturer", "Google");
+        properties.put("_device_model", "Pixel 2");
+        properties.put("_carrier", "T-Mobile");
+        properties.put("_country_code", "US");
+        properties.put("_language", "en");
+        properties.put("_platform", "Android");
+        properties.put("_library_name", Constants.LIBRARY);
+        properties.put("_library_version", Constants.VERSION);
+        properties.put("_ip", true);
+        properties.put("screen", "checkout");
+        properties.put("items", new JSONArray().put("sku-1").put("sku-2"));
+        properties.put("total", 19.99);
+
+        return new JSONObject().put("collection", "purchase").put("properties", properties);
+    }
+
+    /**
+     * @return a tree of objects and arrays with long string leaves, as user supplied
+     * properties can be
+     */
+    static JSONObject deepObject(int depth, int width) throws JSONException {
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < width; i++) {
+            if (depth > 0 && i % 2 == 0) {
+                object.put("object" + i, deepObject(depth - 1, width));
+            } else if (depth > 0) {
+                object.put("array" + i, new JSONArray()
+                        .put(longString(i)).put(i).put(deepObject(depth - 1, width / 2)));
+            } else {
+                object.put("string" + i, longString(i));
+            }
+        }
+        return object;
+    }
+
+    /**
+     * @return serialized events as read from the database, with row ids starting at firstId
+     * and increasing by step
+     */
+    static List<Pair<Long, String>> rawEvents(int count, long firstId, long step)
+            throws JSONException {
+        List<Pair<Long, String>> events = new ArrayList<Pair<Long, String>>(count);
+        for (int i = 0; i < count; i++) {
+            long id = firstId + i * step;
+            events.add(new Pair<Long, String>(id, event(id).put("event_id", id).toString()));
+        }
+        return events;
+    }
+
+    private static String longString(int seed) {
+        StringBuilder builder = new StringBuilder(Constants.MAX_STRING_LENGTH * 2);
+        while (builder.length() < Constants.MAX_STRING_LENGTH * 2) {
+            builder.append("value-").append(seed).append(' ');
+        }
+        return builder.toString();
+    }
+}
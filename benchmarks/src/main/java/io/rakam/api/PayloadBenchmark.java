@@ -0,0 +1,112 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event work done on the logThread before an event reaches the database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+    private RakamClient client;
+    private JSONObject event;
+    private JSONObject deepObject;
+    private String deepObjectString;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        // the client is only used for its stateless helpers, keep its worker threads quiet
+        RakamLog.getLogger().setEnableLogging(false);
+        client = new RakamClient();
+        event = BenchmarkData.event(1);
+        deepObjectString = BenchmarkData.deepObject(4, 6).toString();
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws JSONException {
+        // truncate works in place, so every iteration starts from untruncated values
+        deepObject = new JSONObject(deepObjectString);
+    }
+
+    @Benchmark
+    public JSONObject truncateDeepObject() {
+        return client.truncate(deepObject);
+    }
+
+    @Benchmark
+    public JSONObject truncateEvent() {
+        return client.truncate(event);
+    }
+
+    @Benchmark
+    public JSONObject cloneEvent() {
+        return Utils.cloneJSONObject(event);
+    }
+
+    @Benchmark
+    public String serializeEvent() {
+        return event.toString();
+    }
+
+    @Benchmark
+    public String serializeWithEventSerializer() throws JSONException {
+        return new EventSerializer(event, null).toEventString("benchmark");
+    }
+
+    @Benchmark
+    public String serializeEventBuilder() throws JSONException {
+        EventBuilder builder = EventBuilder.obtain("benchmark")
+                .putLong("frame", 1200L)
+                .putDouble("frame_time_ms", 16.6)
+                .putBoolean("dropped", false)
+                .putString("screen", "home");
+        String serialized = new EventSerializer(null, builder, null).toEventString("benchmark");
+        builder.recycle();
+        return serialized;
+    }
+
+    @Benchmark
+    public JSONObject parseEvent() throws JSONException {
+        return new JSONObject(event.toString());
+    }
+
+    @Benchmark
+    public JSONObject buildIdentify() {
+        return new Identify()
+                .set("plan", "premium")
+                .setOnce("first_seen", 1500000000000L)
+                .add("purchases", 1)
+                .append("skus", new String[] { "sku-1", "sku-2" })
+                .prepend("recent", "checkout")
+                .userPropertiesOperations;
+    }
+
+    @Benchmark
+    public JSONObject revenueToJSONObject() {
+        return new Revenue()
+                .setProductId("com.example.product")
+                .setPrice(3.99)
+                .setQuantity(2)
+                .setRevenueType("purchase")
+                .toJSONObject();
+    }
+}
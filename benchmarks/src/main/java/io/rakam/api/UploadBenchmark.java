@@ -0,0 +1,103 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+
+/**
+ * Per-batch work done when uploading: merging events and identifys read from the database and
+ * writing the request body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadBenchmark {
+
+    @Param({"10", "100"})
+    public int batchSize;
+
+    private RakamClient client;
+    private String api;
+    private List<Pair<Long, String>> events;
+    private List<Pair<Long, String>> identifys;
+    private List<String> serializedEvents;
+    private JSONArray parsedEvents;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        // the client is only used for its stateless helpers, keep its worker threads quiet
+        RakamLog.getLogger().setEnableLogging(false);
+        client = new RakamClient();
+        api = new JSONObject().put("api_key", "1cc2c1978ebab0f6451112a8f5df4f4e")
+                .put("upload_time", 1500000000000L).toString();
+
+        // interleaved ids, so the merge alternates between the two tables
+        events = BenchmarkData.rawEvents(batchSize, 1, 2);
+        identifys = BenchmarkData.rawEvents(batchSize, 2, 2);
+
+        serializedEvents = new ArrayList<String>(batchSize);
+        parsedEvents = new JSONArray();
+        for (Pair<Long, String> event : events) {
+            serializedEvents.add(event.second);
+            parsedEvents.put(new JSONObject(event.second));
+        }
+    }
+
+    @Benchmark
+    public Pair<Pair<Long, Long>, List<String>> mergeEventsAndIdentifys() {
+        // merging consumes its input lists
+        return client.mergeEventsAndIdentifys(
+                new LinkedList<Pair<Long, String>>(events),
+                new LinkedList<Pair<Long, String>>(identifys),
+                batchSize, Long.MAX_VALUE
+        );
+    }
+
+    @Benchmark
+    public long writeUploadBody() throws IOException {
+        Buffer buffer = new Buffer();
+        new EventUploadRequestBody(api, serializedEvents).writeTo(buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public long writeGzipUploadBody() throws IOException {
+        Buffer buffer = new Buffer();
+        new GzipRequestBody(new EventUploadRequestBody(api, serializedEvents)).writeTo(buffer);
+        return buffer.size();
+    }
+
+    /**
+     * Building the body from parsed events as a single string, for comparison.
+     */
+    @Benchmark
+    public int buildUploadBodyString() throws JSONException {
+        return new JSONObject().put("api", new JSONObject(api)).put("events", parsedEvents)
+                .toString().length();
+    }
+}
@@ -0,0 +1,444 @@
+package io.rakam.api;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of serialized events, used at rest in the database. Keys are
+ * replaced by ids from a per-database dictionary, integers are stored as varints and the
+ * structure as single byte tags, so the key names that every event repeats are stored once.
+ * Events are transcoded from and back to JSON text without building JSONObjects, and decoding
+ * gives back the exact text that was encoded.
+ *
+ * Layout, after a version byte:
+ *   value   = NULL | FALSE | TRUE | INT varint | NUMBER text | STRING text
+ *           | OBJECT (key value)* varint 0 | ARRAY value* END
+ *   key     = varint 1, text for a key stored inline, or varint id + 2 for a dictionary key
+ *   text    = varint byte length, then the UTF-8 bytes, still JSON escaped
+ * Varints are unsigned LEB128, INT values are zigzag encoded first.
+ *
+ * Not thread safe, DatabaseHelper synchronizes access.
+ */
+class CompactEventCodec {
+
+    /**
+     * Persists the keys added to the dictionary, before they are used. The store assigns the
+     * ids, since other writers may have added keys the dictionary in memory does not know.
+     */
+    interface KeyStore {
+        /**
+         * Stores a key, or looks up the id it was stored with before.
+         *
+         * @return the id of the key, -1 if it could not be stored
+         */
+        int addKey(String key);
+    }
+
+    static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte NUMBER = 4;
+    private static final byte STRING = 5;
+    private static final byte OBJECT = 6;
+    private static final byte ARRAY = 7;
+    private static final byte END = 8;
+
+    private static final int KEY_END = 0;
+    private static final int KEY_INLINE = 1;
+    private static final int KEY_ID_OFFSET = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxKeys;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> keys = new ArrayList<String>();
+
+    // encoder state
+    private String json;
+    private int position;
+    private byte[] buffer = new byte[1024];
+    private int length;
+
+    // decoder state
+    private byte[] data;
+    private int offset;
+
+    /**
+     * @param maxKeys the size limit of the dictionary, further keys are stored inline
+     */
+    CompactEventCodec(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Adds a key read back from the dictionary table.
+     */
+    void loadKey(int id, String key) {
+        while (keys.size() <= id) {
+            keys.add(null);
+        }
+        keys.set(id, key);
+        ids.put(key, id);
+    }
+
+    int getKeyCount() {
+        return ids.size();
+    }
+
+    /**
+     * @return the encoded event, or null if it is not a JSON object this codec can encode
+     */
+    byte[] encode(String event, KeyStore keyStore) {
+        json = event;
+        position = 0;
+        length = 0;
+        try {
+            writeByte(VERSION);
+            skipWhitespace();
+            if (peek() != '{') {
+                return null;
+            }
+            encodeValue(keyStore);
+            skipWhitespace();
+            if (position != json.length()) {
+                return null;
+            }
+            return Arrays.copyOf(buffer, length);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (StringIndexOutOfBoundsException e) {
+            return null;
+        } finally {
+            json = null;
+        }
+    }
+
+    private void encodeValue(KeyStore keyStore) {
+        skipWhitespace();
+        char c = peek();
+        switch (c) {
+            case '{':
+                position++;
+                writeByte(OBJECT);
+                skipWhitespace();
+                if (peek() == '}') {
+                    position++;
+                } else {
+                    while (true) {
+                        skipWhitespace();
+                        encodeKey(readRawString(), keyStore);
+                        skipWhitespace();
+                        expect(':');
+                        encodeValue(keyStore);
+                        skipWhitespace();
+                        if (peek() == ',') {
+                            position++;
+                        } else {
+                            expect('}');
+                            break;
+                        }
+                    }
+                }
+                writeVarint(KEY_END);
+                break;
+            case '[':
+                position++;
+                writeByte(ARRAY);
+                skipWhitespace();
+                if (peek() == ']') {
+                    position++;
+                } else {
+                    while (true) {
+                        encodeValue(keyStore);
+                        skipWhitespace();
+                        if (peek() == ',') {
+                            position++;
+                        } else {
+                            expect(']');
+                            break;
+                        }
+                    }
+                }
+                writeByte(END);
+                break;
+            case '"':
+                writeByte(STRING);
+                writeText(readRawString());
+                break;
+            case 'n':
+                expectLiteral("null");
+                writeByte(NULL);
+                break;
+            case 't':
+                expectLiteral("true");
+                writeByte(TRUE);
+                break;
+            case 'f':
+                expectLiteral("false");
+                writeByte(FALSE);
+                break;
+            default:
+                encodeNumber();
+                break;
+        }
+    }
+
+    private void encodeKey(String key, KeyStore keyStore) {
+        Integer id = ids.get(key);
+        if (id == null && ids.size() < maxKeys) {
+            id = keyStore.addKey(key);
+            if (id < 0) {
+                // makes encode return null, the event is stored as text instead
+                throw new IllegalArgumentException("Failed to store key " + key);
+            }
+            loadKey(id, key);
+        }
+        if (id == null) {
+            writeVarint(KEY_INLINE);
+            writeText(key);
+        } else {
+            writeVarint(id + KEY_ID_OFFSET);
+        }
+    }
+
+    private void encodeNumber() {
+        int start = position;
+        while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+            position++;
+        }
+        if (position == start) {
+            throw new IllegalArgumentException("Unexpected character at " + start);
+        }
+        String number = json.substring(start, position);
+        // only integers that print back to the same text become varints
+        if (isCanonicalInteger(number)) {
+            try {
+                long value = Long.parseLong(number);
+                writeByte(INT);
+                writeVarint((value << 1) ^ (value >> 63));
+                return;
+            } catch (NumberFormatException e) {
+                // out of range of a long, keep the text
+            }
+        }
+        writeByte(NUMBER);
+        writeText(number);
+    }
+
+    private static boolean isCanonicalInteger(String number) {
+        int i = number.startsWith("-") ? 1 : 0;
+        if (i == number.length() || (number.charAt(i) == '0' && number.length() > i + 1)
+                || number.equals("-0")) {
+            return false;
+        }
+        for (; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns the string between the quotes, escape sequences included
+    private String readRawString() {
+        expect('"');
+        int start = position;
+        while (true) {
+            char c = json.charAt(position);
+            if (c == '\\') {
+                position += 2;
+            } else if (c == '"') {
+                break;
+            } else {
+                position++;
+            }
+        }
+        String raw = json.substring(start, position);
+        position++;
+        return raw;
+    }
+
+    private char peek() {
+        return json.charAt(position);
+    }
+
+    private void expect(char c) {
+        if (json.charAt(position) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + position);
+        }
+        position++;
+    }
+
+    private void expectLiteral(String literal) {
+        if (!json.startsWith(literal, position)) {
+            throw new IllegalArgumentException("Expected " + literal + " at " + position);
+        }
+        position += literal.length();
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+
+    private void writeText(String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer[length++] = value;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+        }
+    }
+
+    /**
+     * Decodes an event back to JSON text, with {@code "event_id":<eventId>} as its first key.
+     *
+     * @return the event, or null if the data is malformed or uses keys missing from the
+     * dictionary
+     */
+    String decode(byte[] encoded, long eventId) {
+        data = encoded;
+        offset = 0;
+        try {
+            if (readByte() != VERSION || readByte() != OBJECT) {
+                return null;
+            }
+            StringBuilder out = new StringBuilder(encoded.length * 2 + 32);
+            out.append("{\"event_id\":").append(eventId);
+            decodeEntries(out, true);
+            return offset == data.length ? out.toString() : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        } finally {
+            data = null;
+        }
+    }
+
+    private void decodeValue(StringBuilder out) {
+        byte tag = readByte();
+        switch (tag) {
+            case NULL:
+                out.append("null");
+                break;
+            case FALSE:
+                out.append("false");
+                break;
+            case TRUE:
+                out.append("true");
+                break;
+            case INT:
+                long zigzag = readVarint();
+                out.append((zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            case NUMBER:
+                out.append(readText());
+                break;
+            case STRING:
+                out.append('"').append(readText()).append('"');
+                break;
+            case OBJECT:
+                out.append('{');
+                decodeEntries(out, false);
+                break;
+            case ARRAY:
+                out.append('[');
+                boolean first = true;
+                while (data[offset] != END) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    decodeValue(out);
+                }
+                offset++;
+                out.append(']');
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+    }
+
+    // writes the entries and the closing brace of an object whose opening brace is written,
+    // followed by other entries if hasPrevious
+    private void decodeEntries(StringBuilder out, boolean hasPrevious) {
+        boolean first = !hasPrevious;
+        while (true) {
+            long key = readVarint();
+            if (key == KEY_END) {
+                break;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"').append(key == KEY_INLINE ? readText() : dictionaryKey(key)).append("\":");
+            decodeValue(out);
+        }
+        out.append('}');
+    }
+
+    private String dictionaryKey(long key) {
+        long id = key - KEY_ID_OFFSET;
+        String value = id < keys.size() ? keys.get((int) id) : null;
+        if (value == null) {
+            throw new IllegalArgumentException("Unknown key " + id);
+        }
+        return value;
+    }
+
+    private byte readByte() {
+        return data[offset++];
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data[offset++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private String readText() {
+        int size = (int) readVarint();
+        if (size < 0 || offset + size > data.length) {
+            throw new IllegalArgumentException("Malformed text");
+        }
+        String text = new String(data, offset, size, UTF_8);
+        offset += size;
+        return text;
+    }
+}
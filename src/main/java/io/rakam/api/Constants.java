@@ -11,19 +11,37 @@ public class Constants {
     public static final String PACKAGE_NAME = "io.rakam.api";
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 5;
+    public static final String EVENT_LOG_NAME = PACKAGE_NAME + ".log";
+    public static final int EVENT_LOG_SEGMENT_BYTES = 1024 * 1024; // 1MB
+    public static final int EVENT_LOG_METADATA_SEGMENT_BYTES = 64 * 1024; // 64KB
 
     public static final String DEFAULT_INSTANCE = "$default_instance";
 
     public static final int EVENT_UPLOAD_THRESHOLD = 30;
     public static final int EVENT_UPLOAD_MAX_BATCH_SIZE = 100;
+    public static final int UPLOAD_WINDOW_SIZE = 1; // one batch in flight
+    public static final long UPLOAD_BATCH_BYTES = 256 * 1024; // 256KB
+    public static final long UPLOAD_BATCH_MIN_BYTES = 16 * 1024; // 16KB
+    public static final long UPLOAD_BATCH_MAX_BYTES = 1024 * 1024; // 1MB
+    public static final long UPLOAD_BATCH_BYTES_STEP = 16 * 1024; // 16KB
+    public static final long UPLOAD_TARGET_LATENCY_MILLIS = 5 * 1000; // 5s
+    public static final long UPLOAD_RETRY_BASE_MILLIS = 5 * 1000; // 5s
+    public static final long UPLOAD_RETRY_MAX_MILLIS = 10 * 60 * 1000; // 10m
     public static final int EVENT_MAX_COUNT = 1000;
     public static final int EVENT_REMOVE_BATCH_SIZE = 20;
+    // no byte budget by default, only EVENT_MAX_COUNT applies
+    public static final long EVENT_MAX_BYTES = -1;
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
+    public static final int EVENT_WRITE_BUFFER_SIZE = 1; // write through
+    public static final long EVENT_WRITE_BUFFER_MILLIS = 1000; // 1s
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
+    public static final long LOCATION_TTL_MILLIS = 60 * 1000; // 1m
     public static final int MAX_STRING_LENGTH = 1024;
     public static final int MAX_PROPERTY_KEYS = 1000;
+    public static final int MAX_EVENT_KEYS = 4096;
+    public static final int MAX_AGGREGATE_KEYS = 1000;
 
     public static final String SHARED_PREFERENCES_NAME_PREFIX = PACKAGE_NAME;
     public static final String PREFKEY_LAST_EVENT_ID = PACKAGE_NAME + ".lastEventId";
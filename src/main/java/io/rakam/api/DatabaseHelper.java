@@ -9,17 +9,19 @@ import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.util.Pair;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-class DatabaseHelper extends SQLiteOpenHelper {
+class DatabaseHelper extends SQLiteOpenHelper implements EventStore {
 
     static final Map<String, DatabaseHelper> instances = new HashMap<String, DatabaseHelper>();
 
@@ -34,6 +36,15 @@ class DatabaseHelper extends SQLiteOpenHelper {
     protected static final String IDENTIFY_TABLE_NAME = "identifys";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String DATA_FIELD = "data";
+    private static final String PRIORITY_FIELD = "priority";
+
+    // dictionary of the keys used by compact encoded events, see CompactEventCodec
+    protected static final String EVENT_KEYS_TABLE_NAME = "event_keys";
+
+    // bytes taken by an event row, as text or compact encoded
+    private static final String EVENT_BYTES = "IFNULL(LENGTH(CAST(" + EVENT_FIELD + " AS BLOB)), 0) + IFNULL(LENGTH("
+            + DATA_FIELD + "), 0)";
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
@@ -41,17 +52,62 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private static final String CREATE_LONG_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + LONG_STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
             + VALUE_FIELD + " INTEGER);";
+    private static final String PRIORITY_TYPE = "INTEGER NOT NULL DEFAULT " + EventPriority.NORMAL;
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + DATA_FIELD + " BLOB, "
+            + PRIORITY_FIELD + " " + PRIORITY_TYPE + ");";
     private static final String CREATE_IDENTIFYS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + DATA_FIELD + " BLOB);";
+    private static final String CREATE_EVENT_KEYS_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + EVENT_KEYS_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY NOT NULL, "
+            + KEY_FIELD + " TEXT UNIQUE NOT NULL);";
+    // lets the oldest events of a priority be found without scanning the other lanes
+    private static final String CREATE_EVENTS_PRIORITY_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + EVENT_TABLE_NAME + "_" + PRIORITY_FIELD + " ON " + EVENT_TABLE_NAME
+            + " (" + PRIORITY_FIELD + ", " + ID_FIELD + ");";
 
     File file;
     private String instanceName;
     private boolean callResetListenerOnDatabaseReset = true;
     private DatabaseResetListener databaseResetListener;
+    private boolean keepConnectionOpen = false;
+    private boolean writeAheadLogging = false;
+    private boolean durableWrites = true;
+    private boolean compactEncoding = false;
+
+    // Loaded from the event keys table on first use, dropped whenever the database is reset
+    // since the dictionary belongs to the database file.
+    private CompactEventCodec codec;
+
+    // Compiled insert, upsert and delete statements, reused while the connection is kept open.
+    // Statements belong to the connection that compiled them, so the cache is dropped whenever
+    // that connection changes or gets closed.
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private SQLiteDatabase statementsDatabase;
+
+    // Row counts of the events and identifys tables, kept up to date by add and remove so that
+    // the hot path never has to run SELECT COUNT(*). -1 means the count is unknown and gets
+    // seeded from the table on next use, which happens on first access and after a reset.
+    private long eventCount = -1;
+    private long identifyCount = -1;
+
+    // Number of events per EventPriority, -1 when unknown. Only kept up to date by inserts,
+    // removals by id range do not know the priorities of the rows they hit and reset them.
+    private final long[] priorityCounts = {-1, -1, -1};
+
+    // Bytes taken by the events and identifys tables, -1 when unknown. Only tracked once they
+    // have been asked for, from then on removals sum up the rows they delete first.
+    private long eventBytes = -1;
+    private long identifyBytes = -1;
+
+    // Lower bounds of the live ids in the events and identifys tables. Ids only ever grow, so
+    // together with the last inserted id they describe the window of stored rows, and the oldest
+    // rows can be removed with a single range delete from the bound. -1 means unknown, it gets
+    // seeded with SELECT MIN(id), which is answered from the primary key index.
+    private long minEventId = -1;
+    private long minIdentifyId = -1;
 
     private static final RakamLog logger = RakamLog.getLogger();
 
@@ -88,8 +144,155 @@ class DatabaseHelper extends SQLiteOpenHelper {
         this.databaseResetListener = databaseResetListener;
     }
 
+    /**
+     * When enabled, the connection fetched by getWritableDatabase / getReadableDatabase is kept
+     * open between calls instead of being closed at the end of every method. It is only closed
+     * when the database gets reset (see delete) or when the mode is switched off again.
+     */
+    synchronized void setKeepConnectionOpen(boolean keepConnectionOpen) {
+        this.keepConnectionOpen = keepConnectionOpen;
+        if (!keepConnectionOpen) {
+            close();
+        }
+    }
+
+    synchronized boolean isKeepingConnectionOpen() {
+        return keepConnectionOpen;
+    }
+
+    /**
+     * Switches the database to write-ahead logging, so that commits append to the log instead
+     * of rewriting the rollback journal, and readers no longer block on an ongoing write. Takes
+     * effect on the next connection, an open connection is closed. Requires API 16.
+     */
+    synchronized void setWriteAheadLogging(boolean writeAheadLogging) {
+        if (this.writeAheadLogging != writeAheadLogging) {
+            this.writeAheadLogging = writeAheadLogging;
+            close();
+        }
+    }
+
+    synchronized boolean isWriteAheadLogging() {
+        return writeAheadLogging;
+    }
+
+    /**
+     * When disabled, SQLite syncs to disk less often (PRAGMA synchronous = NORMAL). Combined
+     * with write-ahead logging a crash or power loss can then only lose the last commits, but
+     * never corrupt the database. Takes effect on the next connection, an open connection is
+     * closed. Requires API 16.
+     */
+    synchronized void setDurableWrites(boolean durableWrites) {
+        if (this.durableWrites != durableWrites) {
+            this.durableWrites = durableWrites;
+            close();
+        }
+    }
+
+    synchronized boolean isDurableWrites() {
+        return durableWrites;
+    }
+
+    /**
+     * When enabled, new events are stored in the binary format of {@link CompactEventCodec}
+     * instead of as JSON text, which takes a fraction of the space since the keys every event
+     * repeats are replaced by dictionary ids. Events are turned back into JSON text when read
+     * for an upload. Rows of either format can be read at any time, so the setting can be
+     * switched freely and rows written by earlier versions stay as they are.
+     */
+    synchronized void setCompactEncoding(boolean compactEncoding) {
+        this.compactEncoding = compactEncoding;
+    }
+
+    synchronized boolean isCompactEncoding() {
+        return compactEncoding;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (writeAheadLogging) {
+            db.enableWriteAheadLogging();
+        }
+        // after enableWriteAheadLogging, which reconfigures the connection's sync mode
+        if (!durableWrites) {
+            db.execSQL("PRAGMA synchronous = NORMAL");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        releaseStatements();
+        super.close();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        closeIfDatabaseFileMissing();
+        return super.getWritableDatabase();
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        closeIfDatabaseFileMissing();
+        return super.getReadableDatabase();
+    }
+
+    // A long-lived connection would keep writing to an unlinked file if the database file got
+    // deleted underneath it. Close it so the next fetch recreates the file and runs onCreate,
+    // which also triggers the reset listener, same as when the connection is not kept open.
+    private void closeIfDatabaseFileMissing() {
+        if (keepConnectionOpen && !file.exists()) {
+            close();
+        }
+    }
+
+    private void releaseConnection() {
+        if (!keepConnectionOpen) {
+            close();
+        }
+    }
+
+    // Only used while the connection is kept open, otherwise the statement would have to be
+    // compiled again for every call anyway.
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        if (statementsDatabase != db) {
+            releaseStatements();
+            statementsDatabase = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    private void releaseStatements() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        statementsDatabase = null;
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long) {
+            statement.bindLong(index, (Long) value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        invalidateEventCounts();
+        codec = null;
         db.execSQL(CREATE_STORE_TABLE);
         db.execSQL(CREATE_LONG_STORE_TABLE);
         // INTEGER PRIMARY KEY AUTOINCREMENT guarantees that all generated values
@@ -97,6 +300,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // lifetime of the table, even if rows get removed
         db.execSQL(CREATE_EVENTS_TABLE);
         db.execSQL(CREATE_IDENTIFYS_TABLE);
+        db.execSQL(CREATE_EVENT_KEYS_TABLE);
+        db.execSQL(CREATE_EVENTS_PRIORITY_INDEX);
 
         // NOTE: the database file can become corrupted between interactions
         // getWriteableDatabase and getReadableDatabase will test for corruption
@@ -141,6 +346,19 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 if (newVersion <= 3) break;
 
             case 3:
+                // existing rows keep their JSON text, reads handle both formats
+                addColumnIfMissing(db, EVENT_TABLE_NAME, DATA_FIELD, "BLOB");
+                addColumnIfMissing(db, IDENTIFY_TABLE_NAME, DATA_FIELD, "BLOB");
+                db.execSQL(CREATE_EVENT_KEYS_TABLE);
+                if (newVersion <= 4) break;
+
+            case 4:
+                // existing events keep the normal priority of the column default
+                addColumnIfMissing(db, EVENT_TABLE_NAME, PRIORITY_FIELD, PRIORITY_TYPE);
+                db.execSQL(CREATE_EVENTS_PRIORITY_INDEX);
+                if (newVersion <= 5) break;
+
+            case 5:
                 break;
 
             default:
@@ -154,15 +372,33 @@ class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + EVENT_KEYS_TABLE_NAME);
         onCreate(db);
     }
 
-    synchronized long insertOrReplaceKeyValue(String key, String value) {
+    // tables created by an earlier upgrade step already have the current columns
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String type) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(cursor.getColumnIndex("name")))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
         return value == null ? deleteKeyFromTable(STORE_TABLE_NAME, key) :
                 insertOrReplaceKeyValueToTable(STORE_TABLE_NAME, key, value);
     }
 
-    synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
         return value == null ? deleteKeyFromTable(LONG_STORE_TABLE_NAME, key) :
                 insertOrReplaceKeyValueToTable(LONG_STORE_TABLE_NAME, key, value);
     }
@@ -189,7 +425,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             delete();
         } finally {
             if (db != null && db.isOpen()) {
-                close();
+                releaseConnection();
             }
         }
         return result;
@@ -197,14 +433,22 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     synchronized long insertOrReplaceKeyValueToTable(SQLiteDatabase db, String table, String key, Object value) throws SQLiteException, StackOverflowError {
         long result = -1;
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(KEY_FIELD, key);
-        if (value instanceof Long) {
-            contentValues.put(VALUE_FIELD, (Long) value);
+        if (keepConnectionOpen) {
+            SQLiteStatement statement = getStatement(db, "INSERT OR REPLACE INTO " + table
+                    + " (" + KEY_FIELD + ", " + VALUE_FIELD + ") VALUES (?, ?)");
+            bindValue(statement, 1, key);
+            bindValue(statement, 2, value);
+            result = statement.executeInsert();
         } else {
-            contentValues.put(VALUE_FIELD, (String) value);
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(KEY_FIELD, key);
+            if (value instanceof Long) {
+                contentValues.put(VALUE_FIELD, (Long) value);
+            } else {
+                contentValues.put(VALUE_FIELD, (String) value);
+            }
+            result = insertKeyValueContentValuesIntoTable(db, table, contentValues);
         }
-        result = insertKeyValueContentValuesIntoTable(db, table, contentValues);
         if (result == -1) {
             logger.w(TAG, "Insert failed");
         }
@@ -224,7 +468,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            result = db.delete(table, KEY_FIELD + "=?", new String[]{key});
+            result = deleteRows(db, table, KEY_FIELD + " = ?", key);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("deleteKey from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -240,28 +484,36 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
         return result;
     }
 
-    synchronized long addEvent(String event) {
-        return addEventToTable(EVENT_TABLE_NAME, event);
+    @Override
+    public synchronized long addEvent(String event) {
+        return addEventToTable(EVENT_TABLE_NAME, event, EventPriority.NORMAL);
     }
 
-    synchronized long addIdentify(String identifyEvent) {
-        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent);
+    @Override
+    public synchronized long addEvent(String event, int priority) {
+        return addEventToTable(EVENT_TABLE_NAME, event, priority);
     }
 
-    private synchronized long addEventToTable(String table, String event) {
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, EventPriority.NORMAL);
+    }
+
+    private synchronized long addEventToTable(String table, String event, int priority) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(EVENT_FIELD, event);
-            result = insertEventContentValuesIntoTable(db, table, contentValues);
+            result = insertEvent(db, table, event, priority);
             if (result == -1) {
                 logger.w(TAG, String.format("Insert into %s failed", table));
+            } else {
+                updateEventCount(table, 1);
+                updatePriorityCount(table, priority, 1);
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
@@ -278,20 +530,268 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
         return result;
     }
 
+    /**
+     * Inserts a batch of events and identifys in a single transaction, so the whole batch costs
+     * one journal commit instead of one per row. Each pair holds the table name and the event
+     * string, rows are inserted in list order.
+     *
+     * @return the last inserted event id and identify id, -1 if none were inserted
+     */
+    @Override
+    public synchronized Pair<Long, Long> addEventsAndIdentifys(List<Pair<String, String>> events) {
+        return addEventsAndIdentifys(events, null);
+    }
+
+    /**
+     * Same as {@link #addEventsAndIdentifys(List)}, with the {@link EventPriority} of each pair,
+     * null if they are all normal.
+     */
+    @Override
+    public synchronized Pair<Long, Long> addEventsAndIdentifys(List<Pair<String, String>> events,
+                                                             List<Integer> priorities) {
+        long lastEventId = -1;
+        long lastIdentifyId = -1;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            long numEvents = 0;
+            long numIdentifys = 0;
+            long[] numPriorityEvents = new long[EventPriority.COUNT];
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < events.size(); i++) {
+                    Pair<String, String> event = events.get(i);
+                    int priority = priorities == null ? EventPriority.NORMAL : priorities.get(i);
+                    long result = insertEvent(db, event.first, event.second, priority);
+                    if (result == -1) {
+                        logger.w(TAG, String.format("Insert into %s failed", event.first));
+                    } else if (event.first.equals(IDENTIFY_TABLE_NAME)) {
+                        lastIdentifyId = result;
+                        numIdentifys++;
+                    } else {
+                        lastEventId = result;
+                        numEvents++;
+                        numPriorityEvents[priority]++;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            updateEventCount(EVENT_TABLE_NAME, numEvents);
+            updateEventCount(IDENTIFY_TABLE_NAME, numIdentifys);
+            for (int priority = 0; priority < EventPriority.COUNT; priority++) {
+                updatePriorityCount(EVENT_TABLE_NAME, priority, numPriorityEvents[priority]);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "addEventsAndIdentifys failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to add batch of %d events", events.size()), e
+            );
+            lastEventId = -1;
+            lastIdentifyId = -1;
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "addEventsAndIdentifys failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to add batch of %d events", events.size()), e
+            );
+            lastEventId = -1;
+            lastIdentifyId = -1;
+            delete();
+        } finally {
+            releaseConnection();
+        }
+        return new Pair<Long, Long>(lastEventId, lastIdentifyId);
+    }
+
+    // the priority column is only written for the other lanes, normal events rely on its default
+    private long insertEvent(SQLiteDatabase db, String table, String event, int priority) {
+        byte[] data = compactEncoding ? encode(db, event) : null;
+        boolean withPriority = priority != EventPriority.NORMAL && table.equals(EVENT_TABLE_NAME);
+        if (keepConnectionOpen) {
+            SQLiteStatement statement = getStatement(db, "INSERT INTO " + table
+                    + " (" + EVENT_FIELD + ", " + DATA_FIELD
+                    + (withPriority ? ", " + PRIORITY_FIELD + ") VALUES (?, ?, ?)" : ") VALUES (?, ?)"));
+            bindValue(statement, 1, data == null ? event : null);
+            bindValue(statement, 2, data);
+            if (withPriority) {
+                bindValue(statement, 3, (long) priority);
+            }
+            return updateEventBytes(table, statement.executeInsert(), event, data);
+        }
+        ContentValues contentValues = new ContentValues();
+        if (data == null) {
+            // events the codec cannot encode are stored as text
+            contentValues.put(EVENT_FIELD, event);
+        } else {
+            contentValues.put(DATA_FIELD, data);
+        }
+        if (withPriority) {
+            contentValues.put(PRIORITY_FIELD, priority);
+        }
+        return updateEventBytes(
+                table, insertEventContentValuesIntoTable(db, table, contentValues), event, data
+        );
+    }
+
+    // adds the size of an inserted row to the byte count of its table, passes the row id through
+    private long updateEventBytes(String table, long id, String event, byte[] data) {
+        if (id != -1) {
+            addEventBytes(table, data != null ? data.length : utf8Length(event));
+        }
+        return id;
+    }
+
+    private static long utf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // A failure of the dictionary never takes the event or the database down with it, the
+    // event is stored as text instead.
+    private byte[] encode(SQLiteDatabase db, String event) {
+        try {
+            return getCodec(db).encode(event, new KeyInserter(db));
+        } catch (SQLiteException e) {
+            logger.w(TAG, "Failed to load the event keys, storing the event as text", e);
+            return null;
+        }
+    }
+
+    private CompactEventCodec getCodec(SQLiteDatabase db) {
+        if (codec == null) {
+            CompactEventCodec loaded = new CompactEventCodec(Constants.MAX_EVENT_KEYS);
+            Cursor cursor = queryDb(db, EVENT_KEYS_TABLE_NAME, new String[]{ID_FIELD, KEY_FIELD},
+                    null, null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    loaded.loadKey(cursor.getInt(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            codec = loaded;
+        }
+        return codec;
+    }
+
+    // Adds the keys the codec needs to the dictionary table and reads back the id stored for
+    // them, which is the one another process assigned if it added the key first. The codec
+    // never hands out an id that was not stored.
+    private class KeyInserter implements CompactEventCodec.KeyStore {
+        private final SQLiteDatabase db;
+
+        KeyInserter(SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        @Override
+        public int addKey(String key) {
+            SQLiteStatement statement = null;
+            try {
+                ContentValues contentValues = new ContentValues();
+                contentValues.put(KEY_FIELD, key);
+                db.insertWithOnConflict(
+                        EVENT_KEYS_TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE
+                );
+                statement = db.compileStatement("SELECT " + ID_FIELD + " FROM "
+                        + EVENT_KEYS_TABLE_NAME + " WHERE " + KEY_FIELD + " = ?");
+                statement.bindString(1, key);
+                return (int) statement.simpleQueryForLong();
+            } catch (SQLiteException e) {
+                logger.w(TAG, String.format("Failed to store event key %s", key), e);
+                return -1;
+            } finally {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+        }
+    }
+
     synchronized long insertEventContentValuesIntoTable(SQLiteDatabase db, String table, ContentValues contentValues) throws SQLiteException, StackOverflowError {
         return db.insert(table, null, contentValues);
     }
 
-    synchronized String getValue(String key) {
+    /**
+     * Deletes the rows matching whereClause, which takes its arguments as ? placeholders so
+     * that the compiled statement can be reused for any arguments.
+     */
+    private int deleteRows(SQLiteDatabase db, String table, String whereClause, Object... whereArgs) {
+        if (keepConnectionOpen) {
+            SQLiteStatement statement = getStatement(
+                    db, "DELETE FROM " + table + " WHERE " + whereClause
+            );
+            for (int i = 0; i < whereArgs.length; i++) {
+                bindValue(statement, i + 1, whereArgs[i]);
+            }
+            return statement.executeUpdateDelete();
+        }
+        String[] args = new String[whereArgs.length];
+        for (int i = 0; i < whereArgs.length; i++) {
+            args[i] = String.valueOf(whereArgs[i]);
+        }
+        return db.delete(table, whereClause, args);
+    }
+
+    /**
+     * Same as deleteRows for the events and identifys tables, taking the size of the deleted rows
+     * off the byte count of the table while it is tracked.
+     */
+    private int deleteEventRows(SQLiteDatabase db, String table, String whereClause, Object... whereArgs) {
+        if (getEventBytes(table) >= 0) {
+            addEventBytes(table, -queryEventBytes(db, table, whereClause, whereArgs));
+        }
+        return deleteRows(db, table, whereClause, whereArgs);
+    }
+
+    private long queryEventBytes(SQLiteDatabase db, String table, String whereClause, Object... whereArgs) {
+        String sql = "SELECT IFNULL(SUM(" + EVENT_BYTES + "), 0) FROM " + table
+                + (whereClause == null ? "" : " WHERE " + whereClause);
+        SQLiteStatement statement = keepConnectionOpen ? getStatement(db, sql) : db.compileStatement(sql);
+        try {
+            for (int i = 0; i < whereArgs.length; i++) {
+                bindValue(statement, i + 1, whereArgs[i]);
+            }
+            return statement.simpleQueryForLong();
+        } finally {
+            if (!keepConnectionOpen) {
+                statement.close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
         return (String) getValueFromTable(STORE_TABLE_NAME, key);
     }
 
-    synchronized Long getLongValue(String key) {
+    @Override
+    public synchronized Long getLongValue(String key) {
         return (Long) getValueFromTable(LONG_STORE_TABLE_NAME, key);
     }
 
@@ -330,7 +830,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
         }
         return value;
     }
@@ -345,28 +845,96 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return getEventsFromTable(IDENTIFY_TABLE_NAME, upToId, limit);
     }
 
+    /**
+     * Returns the stored events as (row id, serialized event) pairs, with the row id already
+     * spliced into each payload as {@code event_id}. The payloads are not parsed.
+     */
+    synchronized List<Pair<Long, String>> getRawEvents(
+            long upToId, long limit) throws JSONException {
+        return getRawEventsFromTable(EVENT_TABLE_NAME, -1, upToId, limit);
+    }
+
+    synchronized List<Pair<Long, String>> getRawIdentifys(
+            long upToId, long limit) throws JSONException {
+        return getRawEventsFromTable(IDENTIFY_TABLE_NAME, -1, upToId, limit);
+    }
+
+    /**
+     * Same as {@link #getRawEvents(long, long)}, skipping events with ids up to and including
+     * afterId, which are already part of an upload in flight.
+     */
+    @Override
+    public synchronized List<Pair<Long, String>> getRawEvents(
+            long afterId, long upToId, long limit) throws JSONException {
+        return getRawEventsFromTable(EVENT_TABLE_NAME, afterId, upToId, limit);
+    }
+
+    @Override
+    public synchronized List<Pair<Long, String>> getRawIdentifys(
+            long afterId, long upToId, long limit) throws JSONException {
+        return getRawEventsFromTable(IDENTIFY_TABLE_NAME, afterId, upToId, limit);
+    }
+
     protected synchronized List<JSONObject> getEventsFromTable(
             String table, long upToId, long limit) throws JSONException {
         List<JSONObject> events = new LinkedList<JSONObject>();
+        for (Pair<Long, String> event : getRawEventsFromTable(table, -1, upToId, limit)) {
+            events.add(new JSONObject(event.second));
+        }
+        return events;
+    }
+
+    protected synchronized List<Pair<Long, String>> getRawEventsFromTable(
+            String table, long afterId, long upToId, long limit) throws JSONException {
+        List<Pair<Long, String>> events = new LinkedList<Pair<Long, String>>();
         Cursor cursor = null;
         try {
+            String selection = upToId >= 0 ? ID_FIELD + " <= " + upToId : null;
+            if (afterId >= 0) {
+                selection = (selection == null ? "" : selection + " AND ") + ID_FIELD + " > " + afterId;
+            }
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                    db, table, new String[] { ID_FIELD, EVENT_FIELD },
-                    upToId >= 0 ? ID_FIELD + " <= " + upToId : null, null, null, null,
+                    db, table, new String[] { ID_FIELD, EVENT_FIELD, DATA_FIELD },
+                    selection, null, null, null,
                     ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
             );
 
+            boolean reloadedCodec = false;
             while (cursor.moveToNext()) {
                 long eventId = cursor.getLong(0);
+                if (!cursor.isNull(2)) {
+                    byte[] data = cursor.getBlob(2);
+                    String event;
+                    try {
+                        event = getCodec(db).decode(data, eventId);
+                        if (event == null && !reloadedCodec) {
+                            // the keys may have been added by another process since they were loaded
+                            reloadedCodec = true;
+                            codec = null;
+                            event = getCodec(db).decode(data, eventId);
+                        }
+                    } catch (SQLiteException e) {
+                        // end the batch before the event, so that it is not acknowledged unread
+                        logger.w(TAG, "Failed to load the event keys", e);
+                        break;
+                    }
+                    if (event == null) {
+                        logger.e(TAG, String.format("Skipping malformed event %d in %s", eventId, table));
+                        Diagnostics.getLogger().logError(
+                                String.format("DB: Skipping malformed event %d in %s", eventId, table)
+                        );
+                        continue;
+                    }
+                    events.add(new Pair<Long, String>(eventId, event));
+                    continue;
+                }
                 String event = cursor.getString(1);
                 if (Utils.isEmptyString(event)) {
                     continue;
                 }
 
-                JSONObject obj = new JSONObject(event);
-                obj.put("event_id", eventId);
-                events.add(obj);
+                events.add(new Pair<Long, String>(eventId, withEventId(event, eventId)));
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getEvents from %s failed", table), e);
@@ -391,29 +959,115 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
         }
         return events;
     }
 
-    synchronized long getEventCount() {
-        return getEventCountFromTable(EVENT_TABLE_NAME);
+    /**
+     * Prepends {@code "event_id":<eventId>} to a serialized JSON object without parsing it.
+     * Stored events are written from JSONObject.toString(), so anything that does not start
+     * with an object brace is unexpected and goes through the parser instead.
+     */
+    static String withEventId(String event, long eventId) throws JSONException {
+        if (event.charAt(0) != '{') {
+            return new JSONObject(event).put("event_id", eventId).toString();
+        }
+        int i = 1;
+        while (i < event.length() && Character.isWhitespace(event.charAt(i))) {
+            i++;
+        }
+        StringBuilder builder = new StringBuilder(event.length() + 32)
+                .append("{\"event_id\":").append(eventId);
+        if (i < event.length() && event.charAt(i) != '}') {
+            builder.append(',');
+        }
+        return builder.append(event, i, event.length()).toString();
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        if (eventCount < 0) {
+            eventCount = getEventCountFromTable(EVENT_TABLE_NAME);
+        }
+        return eventCount;
     }
 
-    synchronized long getIdentifyCount() {
-        return getEventCountFromTable(IDENTIFY_TABLE_NAME);
+    @Override
+    public synchronized long getEventCount(int priority) {
+        if (priorityCounts[priority] < 0) {
+            priorityCounts[priority] = getEventCountFromTable(
+                    EVENT_TABLE_NAME, PRIORITY_FIELD + " = " + priority
+            );
+        }
+        return priorityCounts[priority];
     }
 
-    synchronized long getTotalEventCount() {
+    @Override
+    public synchronized long getIdentifyCount() {
+        if (identifyCount < 0) {
+            identifyCount = getEventCountFromTable(IDENTIFY_TABLE_NAME);
+        }
+        return identifyCount;
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
         return getEventCount() + getIdentifyCount();
     }
 
+    @Override
+    public synchronized long getEventBytes() {
+        if (eventBytes < 0) {
+            eventBytes = getEventBytesFromTable(EVENT_TABLE_NAME);
+        }
+        return eventBytes;
+    }
+
+    @Override
+    public synchronized long getIdentifyBytes() {
+        if (identifyBytes < 0) {
+            identifyBytes = getEventBytesFromTable(IDENTIFY_TABLE_NAME);
+        }
+        return identifyBytes;
+    }
+
+    private synchronized long getEventBytesFromTable(String table) {
+        long bytes = 0;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            bytes = queryEventBytes(db, table, null);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("getEventBytes for %s failed", table), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to getEventBytes for table %s", table), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("getEventBytes for %s failed", table), e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to getEventBytes for table %s", table), e
+            );
+            delete();
+        } finally {
+            releaseConnection();
+        }
+        return bytes;
+    }
+
     private synchronized long getEventCountFromTable(String table) {
+        return getEventCountFromTable(table, null);
+    }
+
+    private synchronized long getEventCountFromTable(String table, String selection) {
         long numberRows = 0;
         SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT COUNT(*) FROM " + table;
+            String query = "SELECT COUNT(*) FROM " + table
+                    + (selection == null ? "" : " WHERE " + selection);
             statement = db.compileStatement(query);
             numberRows = statement.simpleQueryForLong();
         } catch (SQLiteException e) {
@@ -434,7 +1088,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            releaseConnection();
         }
         return numberRows;
     }
@@ -479,23 +1133,28 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            releaseConnection();
         }
         return nthEventId;
     }
 
-    synchronized void removeEvents(long maxId) {
+    @Override
+    public synchronized void removeEvents(long maxId) {
         removeEventsFromTable(EVENT_TABLE_NAME, maxId);
     }
 
-    synchronized void removeIdentifys(long maxId) {
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
         removeEventsFromTable(IDENTIFY_TABLE_NAME, maxId);
     }
 
     private synchronized void removeEventsFromTable(String table, long maxId) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " <= " + maxId, null);
+            int removed = deleteEventRows(db, table, ID_FIELD + " <= ?", maxId);
+            updateEventCount(table, -removed);
+            invalidatePriorityCounts(table);
+            updateMinEventId(table, -1, maxId);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -511,22 +1170,169 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseConnection();
+        }
+    }
+
+    @Override
+    public synchronized long removeOldestEvents(long n) {
+        return removeOldestEventsFromTable(EVENT_TABLE_NAME, n);
+    }
+
+    @Override
+    public synchronized long removeOldestIdentifys(long n) {
+        return removeOldestEventsFromTable(IDENTIFY_TABLE_NAME, n);
+    }
+
+    /**
+     * Removes the n oldest events of a priority. Events of the other priorities are interleaved
+     * with them, so unlike {@link #removeOldestEvents(long)} this cannot be a range delete and
+     * goes through the priority index instead.
+     */
+    @Override
+    public synchronized long removeOldestEvents(long n, int priority) {
+        long removed = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            removed = deleteEventRows(db, EVENT_TABLE_NAME, ID_FIELD + " IN (SELECT " + ID_FIELD
+                    + " FROM " + EVENT_TABLE_NAME + " WHERE " + PRIORITY_FIELD + " = ? ORDER BY "
+                    + ID_FIELD + " LIMIT ?)", (long) priority, n);
+            updateEventCount(EVENT_TABLE_NAME, -removed);
+            updatePriorityCount(EVENT_TABLE_NAME, priority, -removed);
+            setMinEventId(EVENT_TABLE_NAME, -1);
+        } catch (SQLiteException e) {
+            logger.e(TAG, "removeOldestEvents by priority failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldestEvents with priority %d", priority), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "removeOldestEvents by priority failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldestEvents with priority %d", priority), e
+            );
+            delete();
+        } finally {
+            releaseConnection();
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the n oldest rows with a range delete from the lowest live id, without looking up
+     * the nth id with LIMIT / OFFSET first. Rows removed out of order (see removeEvent) leave gaps
+     * in the ids, in which case the range removes fewer rows and is repeated from the actual
+     * lowest id.
+     *
+     * @return the number of rows removed
+     */
+    private synchronized long removeOldestEventsFromTable(String table, long n) {
+        long removed = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            while (removed < n) {
+                long minId = getMinEventId(table);
+                if (minId < 0) {
+                    minId = queryMinEventId(db, table);
+                    if (minId < 0) {
+                        break;  // table is empty
+                    }
+                }
+                long maxId = minId + (n - removed) - 1;
+                int count = deleteEventRows(db, table, ID_FIELD + " <= ?", maxId);
+                updateEventCount(table, -count);
+                invalidatePriorityCounts(table);
+                removed += count;
+                setMinEventId(table, removed < n ? -1 : maxId + 1);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("removeOldestEvents from %s failed", table), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldestEvents from table %s", table), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("removeOldestEvents from %s failed", table), e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeOldestEvents from table %s", table), e
+            );
+            delete();
+        } finally {
+            releaseConnection();
+        }
+        return removed;
+    }
+
+    private long queryMinEventId(SQLiteDatabase db, String table) {
+        SQLiteStatement statement = db.compileStatement(
+                "SELECT IFNULL(MIN(" + ID_FIELD + "), -1) FROM " + table
+        );
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public synchronized void removeEventRange(long afterId, long maxId) {
+        removeEventRangeFromTable(EVENT_TABLE_NAME, afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifyRange(long afterId, long maxId) {
+        removeEventRangeFromTable(IDENTIFY_TABLE_NAME, afterId, maxId);
+    }
+
+    private synchronized void removeEventRangeFromTable(String table, long afterId, long maxId) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            int removed = deleteEventRows(
+                    db, table, ID_FIELD + " > ? AND " + ID_FIELD + " <= ?", afterId, maxId
+            );
+            updateEventCount(table, -removed);
+            invalidatePriorityCounts(table);
+            updateMinEventId(table, afterId, maxId);
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("removeEventRange from %s failed", table), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeEventRange from table %s", table), e
+            );
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("removeEventRange from %s failed", table), e);
+            // potential stack overflow error when getting database on custom Android versions
+            Diagnostics.getLogger().logError(
+                    String.format("DB: Failed to removeEventRange from table %s", table), e
+            );
+            delete();
+        } finally {
+            releaseConnection();
         }
     }
 
-    synchronized void removeEvent(long id) {
+    @Override
+    public synchronized void removeEvent(long id) {
         removeEventFromTable(EVENT_TABLE_NAME, id);
     }
 
-    synchronized void removeIdentify(long id) {
+    @Override
+    public synchronized void removeIdentify(long id) {
         removeEventFromTable(IDENTIFY_TABLE_NAME, id);
     }
 
     private synchronized void removeEventFromTable(String table, long id) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " = " + id, null);
+            int removed = deleteEventRows(db, table, ID_FIELD + " = ?", id);
+            updateEventCount(table, -removed);
+            invalidatePriorityCounts(table);
+            updateMinEventId(table, id - 1, id);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -542,7 +1348,78 @@ class DatabaseHelper extends SQLiteOpenHelper {
             );
             delete();
         } finally {
-            close();
+            releaseConnection();
+        }
+    }
+
+    private void updateEventCount(String table, long delta) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            if (eventCount >= 0) {
+                eventCount = Math.max(0, eventCount + delta);
+            }
+        } else if (table.equals(IDENTIFY_TABLE_NAME)) {
+            if (identifyCount >= 0) {
+                identifyCount = Math.max(0, identifyCount + delta);
+            }
+        }
+    }
+
+    private void updatePriorityCount(String table, int priority, long delta) {
+        if (table.equals(EVENT_TABLE_NAME) && priorityCounts[priority] >= 0) {
+            priorityCounts[priority] = Math.max(0, priorityCounts[priority] + delta);
+        }
+    }
+
+    private void invalidatePriorityCounts(String table) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            Arrays.fill(priorityCounts, -1);
+        }
+    }
+
+    private long getEventBytes(String table) {
+        return table.equals(IDENTIFY_TABLE_NAME) ? identifyBytes : eventBytes;
+    }
+
+    private void addEventBytes(String table, long delta) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            if (eventBytes >= 0) {
+                eventBytes = Math.max(0, eventBytes + delta);
+            }
+        } else if (table.equals(IDENTIFY_TABLE_NAME)) {
+            if (identifyBytes >= 0) {
+                identifyBytes = Math.max(0, identifyBytes + delta);
+            }
+        }
+    }
+
+    private void invalidateEventCounts() {
+        eventCount = -1;
+        identifyCount = -1;
+        eventBytes = -1;
+        identifyBytes = -1;
+        Arrays.fill(priorityCounts, -1);
+        minEventId = -1;
+        minIdentifyId = -1;
+    }
+
+    private long getMinEventId(String table) {
+        return table.equals(IDENTIFY_TABLE_NAME) ? minIdentifyId : minEventId;
+    }
+
+    private void setMinEventId(String table, long minId) {
+        if (table.equals(EVENT_TABLE_NAME)) {
+            minEventId = minId;
+        } else if (table.equals(IDENTIFY_TABLE_NAME)) {
+            minIdentifyId = minId;
+        }
+    }
+
+    // after removing the ids in (afterId, maxId], the bound only moves up if no rows were left
+    // in front of the removed range
+    private void updateMinEventId(String table, long afterId, long maxId) {
+        long minId = getMinEventId(table);
+        if (minId > afterId && minId <= maxId) {
+            setMinEventId(table, maxId + 1);
         }
     }
 
@@ -550,6 +1427,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // This only gets called if the database somehow gets corrupted AFTER being fetched
         // ie after the call to getWriteableDatabase / getReadableDatabase
         // or if a SQL exception occurs during the interaction
+        invalidateEventCounts();
+        codec = null;
         try {
             close();
             file.delete();
@@ -572,7 +1451,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 finally {
                     callResetListenerOnDatabaseReset = true;
                     if (db != null && db.isOpen()) {
-                        close();
+                        releaseConnection();
                     }
                 }
             }
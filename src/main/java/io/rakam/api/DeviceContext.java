@@ -0,0 +1,109 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The device properties added to every event, resolved once against the tracking options.
+ * None of them change while the process runs, so RakamClient keeps one instance and only
+ * builds a new one when the tracking options, the device info or the advertising id change.
+ *
+ * Immutable, so it can be shared between the threads logging events.
+ */
+class DeviceContext {
+
+    private final DeviceInfo deviceInfo;
+    private final TrackingOptions trackingOptions;
+    private final int trackingOptionsVersion;
+    private final String platform;
+    private final String advertisingId;
+
+    private final String[] keys;
+    private final Object[] values;
+
+    private DeviceContext(DeviceInfo deviceInfo, TrackingOptions trackingOptions, String platform,
+                          List<String> keys, List<Object> values) {
+        this.deviceInfo = deviceInfo;
+        this.trackingOptions = trackingOptions;
+        this.trackingOptionsVersion = trackingOptions.getVersion();
+        this.platform = platform;
+        this.advertisingId = deviceInfo.getAdvertisingId();
+        this.keys = keys.toArray(new String[keys.size()]);
+        this.values = values.toArray();
+    }
+
+    static DeviceContext build(DeviceInfo deviceInfo, TrackingOptions trackingOptions, String platform) {
+        List<String> keys = new ArrayList<String>();
+        List<Object> values = new ArrayList<Object>();
+
+        if (trackingOptions.shouldTrackVersionName()) {
+            add(keys, values, "_version_name", deviceInfo.getVersionName());
+        }
+        if (trackingOptions.shouldTrackOsName()) {
+            add(keys, values, "_os_name", deviceInfo.getOsName());
+        }
+        if (trackingOptions.shouldTrackOsVersion()) {
+            add(keys, values, "_os_version", deviceInfo.getOsVersion());
+        }
+        if (trackingOptions.shouldTrackDeviceBrand()) {
+            add(keys, values, "_device_brand", deviceInfo.getBrand());
+        }
+        if (trackingOptions.shouldTrackDeviceManufacturer()) {
+            add(keys, values, "_device_manufacturer", deviceInfo.getManufacturer());
+        }
+        if (trackingOptions.shouldTrackDeviceModel()) {
+            add(keys, values, "_device_model", deviceInfo.getModel());
+        }
+        if (trackingOptions.shouldTrackCarrier()) {
+            add(keys, values, "_carrier", deviceInfo.getCarrier());
+        }
+        if (trackingOptions.shouldTrackCountry()) {
+            add(keys, values, "_country_code", deviceInfo.getCountry());
+        }
+        if (trackingOptions.shouldTrackLanguage()) {
+            add(keys, values, "_language", deviceInfo.getLanguage());
+        }
+        if (trackingOptions.shouldTrackPlatform()) {
+            add(keys, values, "_platform", platform);
+        }
+        add(keys, values, "_library_name", Constants.LIBRARY);
+        add(keys, values, "_library_version", Constants.VERSION);
+        add(keys, values, "_ip", true);
+
+        if (trackingOptions.shouldTrackAdid() && deviceInfo.getAdvertisingId() != null) {
+            add(keys, values, "_android_adid", deviceInfo.getAdvertisingId());
+        }
+        add(keys, values, "_limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
+        add(keys, values, "_gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
+
+        return new DeviceContext(deviceInfo, trackingOptions, platform, keys, values);
+    }
+
+    private static void add(List<String> keys, List<Object> values, String key, Object value) {
+        keys.add(key);
+        values.add(value == null ? JSONObject.NULL : value);
+    }
+
+    /**
+     * @return whether this context is still the one to use for these inputs
+     */
+    boolean isCurrent(DeviceInfo deviceInfo, TrackingOptions trackingOptions, String platform) {
+        return this.deviceInfo == deviceInfo && this.trackingOptions == trackingOptions
+                && trackingOptionsVersion == trackingOptions.getVersion()
+                && equal(this.platform, platform)
+                && equal(advertisingId, deviceInfo.getAdvertisingId());
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    void writeTo(EventSerializer serializer) throws JSONException {
+        for (int i = 0; i < keys.length; i++) {
+            serializer.property(keys[i], values[i]);
+        }
+    }
+}
@@ -7,8 +7,12 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.location.Address;
 import android.location.Geocoder;
 import android.location.Location;
+import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings.Secure;
 import android.telephony.TelephonyManager;
 
@@ -29,7 +33,16 @@ public class DeviceInfo {
     private static final String SETTING_LIMIT_AD_TRACKING = "limit_ad_tracking";
     private static final String SETTING_ADVERTISING_ID = "advertising_id";
 
-    private boolean locationListening = true;
+    private volatile boolean locationListening = true;
+
+    // the last location read, served until it is older than locationTtlMillis
+    private final Object locationLock = new Object();
+    private long locationTtlMillis = Constants.LOCATION_TTL_MILLIS;
+    private boolean passiveLocationUpdates = false;
+    private LocationListener passiveLocationListener;
+    private Location cachedLocation;
+    private long cachedLocationAt;
+    private boolean hasCachedLocation = false;
 
     private Context context;
 
@@ -341,11 +354,32 @@ public class DeviceInfo {
 
     public boolean isGooglePlayServicesEnabled() { return getCachedInfo().gpsEnabled; }
 
+    /**
+     * Returns the most recent location known to the device, or null if location listening is
+     * disabled. The location is read from the location providers at most once every
+     * locationTtlMillis, and served from memory in between.
+     *
+     * @return the most recent location
+     */
     public Location getMostRecentLocation() {
         if (!isLocationListening()) {
             return null;
         }
 
+        synchronized (locationLock) {
+            long now = SystemClock.elapsedRealtime();
+            if (hasCachedLocation && now - cachedLocationAt < locationTtlMillis) {
+                return cachedLocation;
+            }
+            cachedLocation = readMostRecentLocation();
+            cachedLocationAt = now;
+            hasCachedLocation = true;
+            return cachedLocation;
+        }
+    }
+
+    // each provider lookup is a call into the system server
+    private Location readMostRecentLocation() {
         LocationManager locationManager = (LocationManager) context
                 .getSystemService(Context.LOCATION_SERVICE);
 
@@ -396,12 +430,103 @@ public class DeviceInfo {
         return bestLocation;
     }
 
+    /**
+     * Sets how long a location read from the location providers is reused, 0 to read them
+     * for every call.
+     *
+     * @param locationTtlMillis the time to live of the cached location
+     */
+    public void setLocationTtlMillis(long locationTtlMillis) {
+        synchronized (locationLock) {
+            this.locationTtlMillis = locationTtlMillis;
+        }
+    }
+
+    /**
+     * Listens to the passive location provider while location listening is enabled, so that
+     * fixes requested by other apps refresh the cached location without any extra lookups.
+     * Must be called from a thread with a Looper, which receives the updates. Needs the
+     * ACCESS_FINE_LOCATION permission, and is a no-op without it.
+     *
+     * @param passiveLocationUpdates whether to listen to passive location updates
+     */
+    public void setPassiveLocationUpdates(boolean passiveLocationUpdates) {
+        synchronized (locationLock) {
+            this.passiveLocationUpdates = passiveLocationUpdates;
+        }
+        updatePassiveLocationListener();
+    }
+
+    private void updatePassiveLocationListener() {
+        LocationManager locationManager = (LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE);
+        if (locationManager == null) {
+            return;
+        }
+
+        synchronized (locationLock) {
+            boolean listen = passiveLocationUpdates && locationListening;
+            if (listen && passiveLocationListener == null) {
+                LocationListener listener = new LocationListener() {
+                    @Override
+                    public void onLocationChanged(Location location) {
+                        updateCachedLocation(location);
+                    }
+
+                    @Override
+                    public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+                    @Override
+                    public void onProviderEnabled(String provider) {}
+
+                    @Override
+                    public void onProviderDisabled(String provider) {}
+                };
+                Looper looper = Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper();
+                try {
+                    locationManager.requestLocationUpdates(
+                            LocationManager.PASSIVE_PROVIDER, 0, 0, listener, looper);
+                    passiveLocationListener = listener;
+                } catch (IllegalArgumentException e) {
+                    // no passive provider on this device
+                    Diagnostics.getLogger().logError("Failed to request passive location updates", e);
+                } catch (SecurityException e) {
+                    RakamLog.getLogger().w(TAG, "Passive location updates need the "
+                            + "ACCESS_FINE_LOCATION permission");
+                }
+            } else if (!listen && passiveLocationListener != null) {
+                locationManager.removeUpdates(passiveLocationListener);
+                passiveLocationListener = null;
+            }
+        }
+    }
+
+    private void updateCachedLocation(Location location) {
+        if (location == null) {
+            return;
+        }
+        synchronized (locationLock) {
+            if (cachedLocation == null || location.getTime() >= cachedLocation.getTime()) {
+                cachedLocation = location;
+                cachedLocationAt = SystemClock.elapsedRealtime();
+                hasCachedLocation = true;
+            }
+        }
+    }
+
     public boolean isLocationListening() {
         return locationListening;
     }
 
     public void setLocationListening(boolean locationListening) {
-        this.locationListening = locationListening;
+        synchronized (locationLock) {
+            this.locationListening = locationListening;
+            if (!locationListening) {
+                cachedLocation = null;
+                hasCachedLocation = false;
+            }
+        }
+        updatePassiveLocationListener();
     }
 
     // @VisibleForTesting
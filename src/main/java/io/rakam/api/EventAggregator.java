@@ -0,0 +1,201 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory counters, gauges and histograms, see
+ * {@link RakamClient#incrementCounter(String, JSONObject, long)}. Every collection, dimensions
+ * and kind of aggregation has its own accumulator of primitive fields, which is turned into a
+ * single summary event when the aggregates are drained.
+ */
+class EventAggregator {
+
+    static final int COUNTER = 0;
+    static final int GAUGE = 1;
+    static final int HISTOGRAM = 2;
+
+    private static final String[] KINDS = {"counter", "gauge", "histogram"};
+
+    // histogram buckets have power of two upper bounds from 2^MIN_EXPONENT to 2^MAX_EXPONENT,
+    // values at or below 0 go into bucket 0
+    private static final int MIN_EXPONENT = -32;
+    private static final int MAX_EXPONENT = 63;
+
+    private static final String TAG = "io.rakam.api.EventAggregator";
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    private final int maxKeys;
+    private final Map<String, Accumulator> accumulators = new HashMap<String, Accumulator>();
+
+    private static final class Accumulator {
+        final int kind;
+        final String collection;
+        final JSONObject dimensions;
+        final long startTime;
+        long endTime;
+        long count;
+        long total;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double last;
+        long[] buckets;
+
+        Accumulator(int kind, String collection, JSONObject dimensions, long startTime) {
+            this.kind = kind;
+            this.collection = collection;
+            this.dimensions = dimensions;
+            this.startTime = startTime;
+            if (kind == HISTOGRAM) {
+                buckets = new long[MAX_EXPONENT - MIN_EXPONENT + 2];
+            }
+        }
+    }
+
+    /**
+     * @param maxKeys the maximum number of accumulators, further keys are dropped until the
+     *                next drain
+     */
+    EventAggregator(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @return whether a new accumulator was started for the key
+     */
+    synchronized boolean addCount(String collection, JSONObject dimensions, long delta,
+                                  long timestamp) {
+        Accumulator accumulator = get(COUNTER, collection, dimensions, timestamp);
+        if (accumulator == null) {
+            return false;
+        }
+        accumulator.count++;
+        accumulator.total += delta;
+        accumulator.endTime = timestamp;
+        return accumulator.count == 1;
+    }
+
+    /**
+     * @return whether a new accumulator was started for the key
+     */
+    synchronized boolean addValue(int kind, String collection, JSONObject dimensions,
+                                  double value, long timestamp) {
+        Accumulator accumulator = get(kind, collection, dimensions, timestamp);
+        if (accumulator == null) {
+            return false;
+        }
+        accumulator.count++;
+        accumulator.sum += value;
+        accumulator.min = Math.min(accumulator.min, value);
+        accumulator.max = Math.max(accumulator.max, value);
+        accumulator.last = value;
+        accumulator.endTime = timestamp;
+        if (accumulator.buckets != null) {
+            accumulator.buckets[bucket(value)]++;
+        }
+        return accumulator.count == 1;
+    }
+
+    synchronized boolean isEmpty() {
+        return accumulators.isEmpty();
+    }
+
+    private Accumulator get(int kind, String collection, JSONObject dimensions, long timestamp) {
+        String key = kind + collection + '\u0000' + (dimensions == null ? "" : dimensions.toString());
+        Accumulator accumulator = accumulators.get(key);
+        if (accumulator == null) {
+            if (accumulators.size() >= maxKeys) {
+                logger.w(TAG, String.format(
+                        "Too many aggregates (more than %d), dropping %s", maxKeys, collection
+                ));
+                return null;
+            }
+            accumulator = new Accumulator(kind, collection, copy(dimensions), timestamp);
+            accumulators.put(key, accumulator);
+        }
+        return accumulator;
+    }
+
+    private static JSONObject copy(JSONObject dimensions) {
+        JSONObject copy = new JSONObject();
+        if (dimensions == null) {
+            return copy;
+        }
+        Iterator<String> keys = dimensions.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            try {
+                copy.put(key, dimensions.get(key));
+            } catch (JSONException e) {
+                logger.e(TAG, e.toString());
+            }
+        }
+        return copy;
+    }
+
+    private static int bucket(double value) {
+        if (!(value > 0)) {
+            return 0;
+        }
+        int exponent = Math.getExponent(value);
+        if (value > Math.scalb(1.0, exponent)) {
+            exponent++;  // round up to the next power of two
+        }
+        return Math.max(MIN_EXPONENT, Math.min(MAX_EXPONENT, exponent)) - MIN_EXPONENT + 1;
+    }
+
+    /**
+     * Removes all accumulators and returns their summary events.
+     *
+     * @return (collection, properties) pairs, one per accumulator
+     */
+    synchronized List<Pair<String, JSONObject>> drain() {
+        List<Pair<String, JSONObject>> summaries = new ArrayList<Pair<String, JSONObject>>(accumulators.size());
+        for (Accumulator accumulator : accumulators.values()) {
+            try {
+                summaries.add(new Pair<String, JSONObject>(accumulator.collection, summarize(accumulator)));
+            } catch (JSONException e) {
+                logger.e(TAG, String.format(
+                        "Failed to summarize aggregate %s: %s", accumulator.collection, e.toString()
+                ));
+            }
+        }
+        accumulators.clear();
+        return summaries;
+    }
+
+    private static JSONObject summarize(Accumulator accumulator) throws JSONException {
+        JSONObject properties = accumulator.dimensions
+                .put("_aggregation", KINDS[accumulator.kind])
+                .put("_count", accumulator.count)
+                .put("_start_time", accumulator.startTime)
+                .put("_end_time", accumulator.endTime);
+        if (accumulator.kind == COUNTER) {
+            return properties.put("_sum", accumulator.total);
+        }
+        properties.put("_sum", accumulator.sum)
+                .put("_min", accumulator.min)
+                .put("_max", accumulator.max);
+        if (accumulator.kind == GAUGE) {
+            return properties.put("_last", accumulator.last);
+        }
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < accumulator.buckets.length; i++) {
+            if (accumulator.buckets[i] > 0) {
+                String bound = i == 0 ? "0" : JSONObject.numberToString(
+                        Math.scalb(1.0, i - 1 + MIN_EXPONENT));
+                buckets.put(bound, accumulator.buckets[i]);
+            }
+        }
+        return properties.put("_buckets", buckets);
+    }
+}
@@ -0,0 +1,175 @@
+package io.rakam.api;
+
+/**
+ * Builds the properties of an event without a JSONObject. Values are kept unboxed in flat
+ * arrays, and builders are recycled once the event has been logged, so logging numeric events
+ * in a loop allocates next to nothing.
+ *
+ * <pre>
+ * Rakam.getInstance().logEvent(EventBuilder.obtain("frame")
+ *         .putLong("frame_time_ns", frameTimeNanos)
+ *         .putBoolean("dropped", dropped));
+ * </pre>
+ *
+ * A builder belongs to the pool again as soon as it has been passed to
+ * {@link RakamClient#logEvent(EventBuilder)}, and must not be used after that.
+ */
+public class EventBuilder {
+
+    static final byte TYPE_LONG = 0;
+    static final byte TYPE_DOUBLE = 1;
+    static final byte TYPE_BOOLEAN = 2;
+    static final byte TYPE_STRING = 3;
+
+    private static final int POOL_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final EventBuilder[] pool = new EventBuilder[POOL_SIZE];
+    private static int pooled = 0;
+
+    String eventType;
+    boolean outOfSession;
+    int size = 0;
+    String[] keys = new String[INITIAL_CAPACITY];
+    byte[] types = new byte[INITIAL_CAPACITY];
+    // longs, the raw bits of doubles, and 1 or 0 for booleans
+    long[] values = new long[INITIAL_CAPACITY];
+    String[] strings = new String[INITIAL_CAPACITY];
+
+    private EventBuilder() {}
+
+    /**
+     * Returns an empty builder for an event of the given type, reusing a recycled one if
+     * there is one.
+     *
+     * @param eventType the event type
+     * @return the builder
+     */
+    public static EventBuilder obtain(String eventType) {
+        EventBuilder builder = null;
+        synchronized (pool) {
+            if (pooled > 0) {
+                builder = pool[--pooled];
+                pool[pooled] = null;
+            }
+        }
+        if (builder == null) {
+            builder = new EventBuilder();
+        }
+        builder.eventType = eventType;
+        return builder;
+    }
+
+    /**
+     * Clears the builder and returns it to the pool.
+     */
+    void recycle() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+            strings[i] = null;
+        }
+        size = 0;
+        eventType = null;
+        outOfSession = false;
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = this;
+            }
+        }
+    }
+
+    /**
+     * Logs the event outside of the current session, see
+     * {@link RakamClient#logEvent(String, org.json.JSONObject, boolean)}.
+     *
+     * @param outOfSession whether the event is out of session
+     * @return the builder
+     */
+    public EventBuilder setOutOfSession(boolean outOfSession) {
+        this.outOfSession = outOfSession;
+        return this;
+    }
+
+    public EventBuilder putLong(String key, long value) {
+        put(key, TYPE_LONG, value, null);
+        return this;
+    }
+
+    /**
+     * Puts a double property. NaN and infinite values cannot be represented in JSON, an event
+     * with one of them is dropped when it is logged.
+     *
+     * @param key   the property key
+     * @param value the property value
+     * @return the builder
+     */
+    public EventBuilder putDouble(String key, double value) {
+        put(key, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+        return this;
+    }
+
+    public EventBuilder putBoolean(String key, boolean value) {
+        put(key, TYPE_BOOLEAN, value ? 1 : 0, null);
+        return this;
+    }
+
+    /**
+     * Puts a string property, a null value is logged as a JSON null.
+     *
+     * @param key   the property key
+     * @param value the property value
+     * @return the builder
+     */
+    public EventBuilder putString(String key, String value) {
+        put(key, TYPE_STRING, 0, value);
+        return this;
+    }
+
+    private void put(String key, byte type, long value, String string) {
+        if (key == null) {
+            throw new IllegalArgumentException("Property key cannot be null");
+        }
+        // like JSONObject, putting a key again replaces its value
+        int i = indexOf(key);
+        if (i < 0) {
+            if (size == keys.length) {
+                grow();
+            }
+            i = size++;
+            keys[i] = key;
+        }
+        types[i] = type;
+        values[i] = value;
+        strings[i] = string;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        String[] newKeys = new String[capacity];
+        byte[] newTypes = new byte[capacity];
+        long[] newValues = new long[capacity];
+        String[] newStrings = new String[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        System.arraycopy(types, 0, newTypes, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        System.arraycopy(strings, 0, newStrings, 0, size);
+        keys = newKeys;
+        types = newTypes;
+        values = newValues;
+        strings = newStrings;
+    }
+
+    // events carry a handful of properties, a scan beats hashing them
+    int indexOf(String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,54 @@
+package io.rakam.api;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which events get dropped once the unsent events stored on the device reach the event
+ * max count, see {@link RakamClient#setEventMaxCount(int)}. Events and identifys are capped
+ * separately.
+ */
+public class EventEvictionPolicy {
+
+    private final boolean dropAll;
+    private final Set<String> eventTypes;
+
+    private EventEvictionPolicy(boolean dropAll, Set<String> eventTypes) {
+        this.dropAll = dropAll;
+        this.eventTypes = eventTypes;
+    }
+
+    /**
+     * Removes the earliest logged events to make room for new ones. This is the default.
+     */
+    public static EventEvictionPolicy dropOldest() {
+        return new EventEvictionPolicy(false, Collections.<String>emptySet());
+    }
+
+    /**
+     * Keeps the events that are already stored and drops newly logged events instead.
+     */
+    public static EventEvictionPolicy dropNewest() {
+        return new EventEvictionPolicy(true, Collections.<String>emptySet());
+    }
+
+    /**
+     * Drops newly logged events of the given event types, and removes the earliest logged events
+     * to make room for events of any other type. Use {@link Constants#IDENTIFY_EVENT} to include
+     * identifys.
+     *
+     * @param eventTypes the event types to drop first
+     */
+    public static EventEvictionPolicy dropTypes(String... eventTypes) {
+        return new EventEvictionPolicy(false, new HashSet<String>(Arrays.asList(eventTypes)));
+    }
+
+    /**
+     * @return whether a new event of this type is dropped instead of evicting the oldest event
+     */
+    boolean dropsNewEvent(String eventType) {
+        return dropAll || eventTypes.contains(eventType);
+    }
+}
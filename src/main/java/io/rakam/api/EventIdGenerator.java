@@ -0,0 +1,101 @@
+package io.rakam.api;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates the {@code _id} of every event, which the server uses to deduplicate events sent
+ * more than once. See {@link RakamClient#setEventIdGenerator(EventIdGenerator)}.
+ *
+ * Subclasses append the id straight into the event being serialized, so that generating it
+ * does not need an intermediate String. They must be safe to call from several threads.
+ */
+public abstract class EventIdGenerator {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Ids in the UUID version 7 layout: the 48 bit millisecond timestamp of the event, a 12 bit
+     * counter that keeps ids logged within the same millisecond in order, and 62 bits chosen at
+     * random once per generator. Ids sort by the time the events were logged, so the server
+     * inserts them at the end of its dedup index, and generating one takes neither a lock nor
+     * SecureRandom. This is the default.
+     */
+    public static EventIdGenerator timeOrdered() {
+        return new TimeOrdered(new SecureRandom().nextLong());
+    }
+
+    /**
+     * Random version 4 UUIDs from {@link UUID#randomUUID()}, as earlier versions of the SDK
+     * generated them.
+     */
+    public static EventIdGenerator randomUUID() {
+        return new EventIdGenerator() {
+            @Override
+            protected void appendId(long timestamp, StringBuilder out) {
+                out.append(UUID.randomUUID().toString());
+            }
+        };
+    }
+
+    /**
+     * Appends a new id to out. The id is written into a JSON string as is, so it may only
+     * contain characters that need no escaping.
+     *
+     * @param timestamp the time the event was logged, in milliseconds since the epoch
+     * @param out       the builder to append the id to
+     */
+    protected abstract void appendId(long timestamp, StringBuilder out);
+
+    static void appendUUID(long mostSigBits, long leastSigBits, StringBuilder out) {
+        appendHex(mostSigBits >>> 32, 8, out);
+        out.append('-');
+        appendHex(mostSigBits >>> 16, 4, out);
+        out.append('-');
+        appendHex(mostSigBits, 4, out);
+        out.append('-');
+        appendHex(leastSigBits >>> 48, 4, out);
+        out.append('-');
+        appendHex(leastSigBits, 12, out);
+    }
+
+    // appends the low digits * 4 bits of value
+    private static void appendHex(long value, int digits, StringBuilder out) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out.append(HEX_DIGITS[(int) (value >>> shift) & 0xF]);
+        }
+    }
+
+    static final class TimeOrdered extends EventIdGenerator {
+
+        private static final int COUNTER_BITS = 12;
+
+        // the timestamp and counter of the last id, as timestamp << COUNTER_BITS | counter
+        private final AtomicLong last = new AtomicLong(0);
+        private final long leastSigBits;
+
+        TimeOrdered(long seed) {
+            // RFC 4122 variant in the top two bits
+            leastSigBits = (seed & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        }
+
+        @Override
+        protected void appendId(long timestamp, StringBuilder out) {
+            long next;
+            while (true) {
+                long previous = last.get();
+                // never goes back, even when the clock does: the counter keeps counting, and
+                // carries into the timestamp when it runs out within one millisecond
+                next = Math.max(previous + 1, (timestamp & 0xFFFFFFFFFFFFL) << COUNTER_BITS);
+                if (last.compareAndSet(previous, next)) {
+                    break;
+                }
+            }
+            long millis = next >>> COUNTER_BITS;
+            long counter = next & ((1 << COUNTER_BITS) - 1);
+            long mostSigBits = (millis << 16) | 0x7000L | counter;
+            appendUUID(mostSigBits, leastSigBits, out);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.rakam.api;
+
+/**
+ * Priority classes of events, see {@link RakamClient#setEventPriority(String, int)}.
+ *
+ * Once the unsent events reach the event max count, bulk events are evicted first, then normal
+ * events, and critical events only if nothing else is left. Critical events other than
+ * identifys are never dropped on arrival by the {@link EventEvictionPolicy}, and are uploaded
+ * as soon as they are stored instead of waiting for the upload threshold. Each class can also
+ * be given its own max count with {@link RakamClient#setEventMaxCount(int, int)}. Within a
+ * class, events keep the order they were logged in.
+ *
+ * Revenue and session events are critical by default, all other events are normal. Identifys
+ * are stored and capped in their own queue and always count as critical, but are still dropped
+ * by an eviction policy built with {@link EventEvictionPolicy#dropTypes(String...)} that names
+ * {@link Constants#IDENTIFY_EVENT}.
+ */
+public final class EventPriority {
+
+    public static final int CRITICAL = 0;
+    public static final int NORMAL = 1;
+    public static final int BULK = 2;
+
+    static final int COUNT = 3;
+
+    private EventPriority() {
+    }
+
+    static boolean isValid(int priority) {
+        return priority >= CRITICAL && priority <= BULK;
+    }
+}
@@ -0,0 +1,90 @@
+package io.rakam.api;
+
+import io.rakam.security.MD5;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per event type sample rates, see {@link RakamClient#setEventSampleRate(String, double)}.
+ *
+ * Whether an event is kept depends only on the device and the rate: every device hashes to a
+ * fixed point in [0, 1) and keeps the events of the types whose rate is above it. The same
+ * devices are kept on every upload and across all sampled types, so funnels built from kept
+ * devices stay complete, and lowering a rate only ever drops devices.
+ *
+ * The rates and the last hashed device id are immutable values swapped on every change, so
+ * events logged from any thread read them without taking a lock.
+ */
+class EventSampler {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private volatile Map<String, Double> rates = Collections.emptyMap();
+
+    // the last hashed id with its point, published together so that no thread pairs an id
+    // with the point of another
+    private volatile HashedId hashed;
+
+    private static final class HashedId {
+        final String id;
+        final double point;
+
+        HashedId(String id) {
+            this.id = id;
+            this.point = point(id);
+        }
+    }
+
+    /**
+     * @param rate the fraction of devices to keep the events of, 1 to keep all
+     */
+    synchronized void setRate(String eventType, double rate) {
+        Map<String, Double> updated = new HashMap<String, Double>(rates);
+        if (rate >= 1) {
+            updated.remove(eventType);
+        } else {
+            updated.put(eventType, rate);
+        }
+        rates = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * @return the sample rate of the event type, 1 if it is not sampled
+     */
+    double getRate(String eventType) {
+        Double rate = rates.get(eventType);
+        return rate == null ? 1 : rate;
+    }
+
+    boolean isSampled() {
+        return !rates.isEmpty();
+    }
+
+    /**
+     * @return whether the events sampled at rate are kept for the device
+     */
+    boolean keep(String deviceId, double rate) {
+        if (rate >= 1 || deviceId == null) {
+            return true;
+        }
+        HashedId current = hashed;
+        if (current == null || !deviceId.equals(current.id)) {
+            current = new HashedId(deviceId);
+            hashed = current;
+        }
+        return current.point < rate;
+    }
+
+    // the first 53 bits of the MD5 of the id, as a fraction of 1
+    static double point(String id) {
+        byte[] digest = new MD5().digest(id.getBytes(UTF_8));
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (digest[i] & 0xFF);
+        }
+        return (bits >>> 11) * 0x1.0p-53;
+    }
+}
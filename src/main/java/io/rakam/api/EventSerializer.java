@@ -0,0 +1,263 @@
+package io.rakam.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Writes an event straight to JSON text, truncating string values to MAX_STRING_LENGTH and
+ * replacing objects with more than MAX_PROPERTY_KEYS keys by an empty object on the way. This
+ * is the output of {@link RakamClient#truncate(JSONObject)} followed by toString(), without
+ * copying the properties into an intermediate JSONObject and walking them twice.
+ *
+ * The event properties override the super properties, and both override the properties the
+ * SDK adds with {@link #property(String, Object)}, so every key is written once.
+ */
+class EventSerializer {
+
+    private static final String TAG = "io.rakam.api.EventSerializer";
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    private final JSONObject eventProperties;
+    private final EventBuilder builderProperties;
+    private final JSONObject superProperties;
+    private final StringBuilder out = new StringBuilder(1024);
+    private final int propertiesStart;
+    private int propertyCount = 0;
+
+    EventSerializer(JSONObject eventProperties, JSONObject superProperties) {
+        this(eventProperties, null, superProperties);
+    }
+
+    /**
+     * @param eventProperties   the event properties as a JSONObject, or null
+     * @param builderProperties the event properties from an {@link EventBuilder}, or null
+     * @param superProperties   the super properties, or null
+     */
+    EventSerializer(JSONObject eventProperties, EventBuilder builderProperties,
+                    JSONObject superProperties) {
+        this.eventProperties = eventProperties;
+        this.builderProperties = builderProperties;
+        this.superProperties = superProperties;
+        out.append("{\"properties\":");
+        propertiesStart = out.length();
+        out.append('{');
+    }
+
+    /**
+     * Writes a property, unless the event or super properties have a value for the key.
+     */
+    EventSerializer property(String key, Object value) throws JSONException {
+        if (isEventProperty(key) || (superProperties != null && superProperties.has(key))) {
+            return this;
+        }
+        writeProperty(key, value);
+        return this;
+    }
+
+    /**
+     * Writes a new event id as a string property, unless the event or super properties have a
+     * value for the key.
+     */
+    EventSerializer id(String key, EventIdGenerator generator, long timestamp) {
+        if (isEventProperty(key) || (superProperties != null && superProperties.has(key))) {
+            return this;
+        }
+        if (propertyCount++ > 0) {
+            out.append(',');
+        }
+        writeString(key, false);
+        out.append(":\"");
+        generator.appendId(timestamp, out);
+        out.append('"');
+        return this;
+    }
+
+    /**
+     * Writes the event and super properties and closes the event.
+     *
+     * @return the serialized event
+     */
+    String toEventString(String eventType) throws JSONException {
+        if (eventProperties != null) {
+            Iterator<String> keys = eventProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writeProperty(key, eventProperties.get(key));
+            }
+        }
+        if (builderProperties != null) {
+            for (int i = 0; i < builderProperties.size; i++) {
+                writeBuilderProperty(i);
+            }
+        }
+        if (superProperties != null) {
+            Iterator<String> keys = superProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (isEventProperty(key)) {
+                    continue;
+                }
+                writeProperty(key, superProperties.get(key));
+            }
+        }
+
+        if (propertyCount > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            out.setLength(propertiesStart);
+            out.append('{');
+        }
+        out.append("},\"collection\":");
+        writeString(eventType, false);
+        return out.append('}').toString();
+    }
+
+    private boolean isEventProperty(String key) {
+        return (eventProperties != null && eventProperties.has(key))
+                || (builderProperties != null && builderProperties.indexOf(key) >= 0);
+    }
+
+    // writes the values unboxed
+    private void writeBuilderProperty(int i) throws JSONException {
+        if (propertyCount++ > 0) {
+            out.append(',');
+        }
+        writeString(builderProperties.keys[i], false);
+        out.append(':');
+        long value = builderProperties.values[i];
+        switch (builderProperties.types[i]) {
+            case EventBuilder.TYPE_LONG:
+                out.append(value);
+                break;
+            case EventBuilder.TYPE_DOUBLE:
+                writeDouble(Double.longBitsToDouble(value));
+                break;
+            case EventBuilder.TYPE_BOOLEAN:
+                out.append(value != 0);
+                break;
+            default:
+                String string = builderProperties.strings[i];
+                if (string == null) {
+                    out.append("null");
+                } else {
+                    writeString(string, true);
+                }
+                break;
+        }
+    }
+
+    // same output as JSONObject.numberToString
+    private void writeDouble(double value) throws JSONException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("Forbidden numeric value: " + value);
+        }
+        if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+            out.append("-0");
+        } else if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    private void writeProperty(String key, Object value) throws JSONException {
+        if (propertyCount++ > 0) {
+            out.append(',');
+        }
+        writeString(key, false);
+        out.append(':');
+        writeValue(value);
+    }
+
+    private void writeValue(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value, true);
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else if (value instanceof Boolean) {
+            out.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            out.append(JSONObject.numberToString((Number) value));
+        } else {
+            writeString(value.toString(), false);
+        }
+    }
+
+    private void writeObject(JSONObject object) throws JSONException {
+        if (object.length() > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            out.append("{}");
+            return;
+        }
+        out.append('{');
+        Iterator<String> keys = object.keys();
+        boolean first = true;
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            writeString(key, false);
+            out.append(':');
+            writeValue(object.get(key));
+        }
+        out.append('}');
+    }
+
+    private void writeArray(JSONArray array) throws JSONException {
+        out.append('[');
+        for (int i = 0; i < array.length(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            writeValue(array.opt(i));
+        }
+        out.append(']');
+    }
+
+    // escapes like JSONStringer, so the output matches JSONObject.toString()
+    private void writeString(String value, boolean truncate) {
+        int length = truncate ? Math.min(value.length(), Constants.MAX_STRING_LENGTH) : value.length();
+        out.append('"');
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+}
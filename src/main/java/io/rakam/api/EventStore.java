@@ -0,0 +1,115 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONException;
+
+import java.util.List;
+
+/**
+ * Persistent storage for the unsent events and identifys, and for the key/value metadata of the
+ * client (device id, user id, session state). Events and identifys are two separate queues whose
+ * ids only ever increase. {@link DatabaseHelper} is the SQLite implementation, and
+ * {@link SegmentLogEventStore} stores the queues in memory-mapped append-only files.
+ */
+interface EventStore {
+
+    /**
+     * @return the id of the added event, -1 if it could not be stored
+     */
+    long addEvent(String event);
+
+    /**
+     * Adds an event with an {@link EventPriority}. Stores without priority lanes keep all events
+     * in a single normal lane.
+     */
+    long addEvent(String event, int priority);
+
+    long addIdentify(String identifyEvent);
+
+    /**
+     * Appends a batch of (table name, event string) pairs in list order.
+     *
+     * @return the last added event id and identify id, -1 if none were added
+     */
+    Pair<Long, Long> addEventsAndIdentifys(List<Pair<String, String>> events);
+
+    /**
+     * Same as {@link #addEventsAndIdentifys(List)}, with the priority of each pair. Priorities
+     * of identifys are ignored.
+     */
+    Pair<Long, Long> addEventsAndIdentifys(List<Pair<String, String>> events, List<Integer> priorities);
+
+    /**
+     * Returns the stored events as (id, serialized event) pairs, with the id spliced into each
+     * payload as {@code event_id}. Reads the events with ids after afterId and up to upToId, at
+     * most limit of them. Use -1 for no bound.
+     */
+    List<Pair<Long, String>> getRawEvents(long afterId, long upToId, long limit) throws JSONException;
+
+    List<Pair<Long, String>> getRawIdentifys(long afterId, long upToId, long limit) throws JSONException;
+
+    long getEventCount();
+
+    /**
+     * @return the number of events with the {@link EventPriority}
+     */
+    long getEventCount(int priority);
+
+    long getIdentifyCount();
+
+    long getTotalEventCount();
+
+    /**
+     * @return the bytes taken by the stored events, counted as they are stored (UTF-8 text or
+     * compact encoded), without the storage overhead of the implementation
+     */
+    long getEventBytes();
+
+    long getIdentifyBytes();
+
+    /**
+     * Removes the events with ids up to and including maxId, once they have been uploaded.
+     */
+    void removeEvents(long maxId);
+
+    void removeIdentifys(long maxId);
+
+    /**
+     * Removes the events with ids after afterId, up to and including maxId.
+     */
+    void removeEventRange(long afterId, long maxId);
+
+    void removeIdentifyRange(long afterId, long maxId);
+
+    void removeEvent(long id);
+
+    void removeIdentify(long id);
+
+    /**
+     * Removes the n oldest events, to keep the queue under its max count.
+     *
+     * @return the number of events removed
+     */
+    long removeOldestEvents(long n);
+
+    /**
+     * Removes the n oldest events with the {@link EventPriority}.
+     *
+     * @return the number of events removed
+     */
+    long removeOldestEvents(long n, int priority);
+
+    long removeOldestIdentifys(long n);
+
+    String getValue(String key);
+
+    Long getLongValue(String key);
+
+    /**
+     * Stores a string value, or removes it if value is null.
+     */
+    long insertOrReplaceKeyValue(String key, String value);
+
+    long insertOrReplaceKeyLongValue(String key, Long value);
+}
@@ -0,0 +1,75 @@
+package io.rakam.api;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Utf8;
+
+/**
+ * Request body for event batch uploads. Writes the {@code {"api": ..., "events": [...]}}
+ * envelope and the serialized events straight into the sink, so the upload payload is never
+ * built as one String on the heap. The body can be written more than once, for example when
+ * OkHttp retries on a new connection.
+ */
+class EventUploadRequestBody extends RequestBody {
+
+    private static final String API_PREFIX = "{\"api\":";
+    private static final String EVENTS_PREFIX = ",\"events\":[";
+    private static final String SUFFIX = "]}";
+
+    private final String api;
+    private final List<String> events;
+    private long contentLength = -1;
+
+    /**
+     * @param api    the serialized api object
+     * @param events the serialized events, written in list order
+     */
+    EventUploadRequestBody(String api, List<String> events) {
+        this.api = api;
+        this.events = events;
+    }
+
+    int getEventCount() {
+        return events.size();
+    }
+
+    @Override
+    public MediaType contentType() {
+        return RakamClient.JSON;
+    }
+
+    // a known length avoids chunked transfer encoding
+    @Override
+    public long contentLength() {
+        if (contentLength < 0) {
+            long length = API_PREFIX.length() + Utf8.size(api) + EVENTS_PREFIX.length()
+                    + SUFFIX.length();
+            for (int i = 0; i < events.size(); i++) {
+                if (i > 0) {
+                    length++;
+                }
+                length += Utf8.size(events.get(i));
+            }
+            contentLength = length;
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeUtf8(API_PREFIX);
+        sink.writeUtf8(api);
+        sink.writeUtf8(EVENTS_PREFIX);
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                sink.writeByte(',');
+            }
+            sink.writeUtf8(events.get(i));
+        }
+        sink.writeUtf8(SUFFIX);
+    }
+}
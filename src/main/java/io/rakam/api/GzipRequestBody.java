@@ -0,0 +1,40 @@
+package io.rakam.api;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzip-compresses another request body as it is written. The compressed length is not known
+ * up front, so the body is sent with chunked transfer encoding. The request must also carry a
+ * {@code Content-Encoding: gzip} header.
+ */
+class GzipRequestBody extends RequestBody {
+
+    private final RequestBody body;
+
+    GzipRequestBody(RequestBody body) {
+        this.body = body;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+    }
+}
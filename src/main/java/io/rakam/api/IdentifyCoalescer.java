@@ -0,0 +1,233 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Merges consecutive identifys of an upload batch into one, so that apps setting user
+ * properties on every screen send one identify per run instead of one per call. See
+ * {@link RakamClient#setCoalesceIdentifys(boolean)}.
+ *
+ * Only identifys with no event between them in the batch, and with the same user, device and
+ * session are merged, so events keep seeing the user properties they were logged with. The
+ * merged identify carries the metadata of the last one, with the operations combined as the
+ * server would have applied them in order: $set and $unset replace earlier operations on the
+ * property, the first $setOnce wins, and $add sums. $clearAll, and any other combination of
+ * operations on the same property, ends the run.
+ */
+class IdentifyCoalescer {
+
+    private static final String TAG = "io.rakam.api.IdentifyCoalescer";
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    // EventSerializer writes the collection last
+    private static final String IDENTIFY_SUFFIX = ",\"collection\":\"" + Constants.IDENTIFY_EVENT + "\"}";
+
+    private static final String[] SESSION_KEYS = {"_user", "_device_id", "_session_id"};
+
+    private IdentifyCoalescer() {
+    }
+
+    /**
+     * @param batch the serialized events and identifys of a batch, in upload order
+     * @return the batch with consecutive identifys merged, the same list if none were
+     */
+    static List<String> coalesce(List<String> batch) {
+        List<String> coalesced = new ArrayList<String>(batch.size());
+        JSONObject pending = null;
+        String pendingText = null;
+        for (String event : batch) {
+            JSONObject identify = null;
+            if (event.endsWith(IDENTIFY_SUFFIX)) {
+                try {
+                    identify = new JSONObject(event);
+                } catch (JSONException e) {
+                    logger.w(TAG, e.toString());
+                }
+            }
+            if (identify != null && pending != null) {
+                JSONObject merged = merge(pending, identify);
+                if (merged != null) {
+                    pending = merged;
+                    pendingText = null;
+                    continue;
+                }
+            }
+            if (pending != null) {
+                coalesced.add(pendingText != null ? pendingText : pending.toString());
+                pending = null;
+            }
+            if (identify == null) {
+                coalesced.add(event);
+            } else {
+                pending = identify;
+                pendingText = event;
+            }
+        }
+        if (pending != null) {
+            coalesced.add(pendingText != null ? pendingText : pending.toString());
+        }
+        return coalesced.size() == batch.size() ? batch : coalesced;
+    }
+
+    /**
+     * @return the identify applying first and then second, or null if they cannot be merged
+     */
+    static JSONObject merge(JSONObject first, JSONObject second) {
+        JSONObject firstProperties = first.optJSONObject("properties");
+        JSONObject secondProperties = second.optJSONObject("properties");
+        if (firstProperties == null || secondProperties == null
+                || firstProperties.has(Constants.AMP_OP_CLEAR_ALL)
+                || secondProperties.has(Constants.AMP_OP_CLEAR_ALL)) {
+            return null;
+        }
+        for (String key : SESSION_KEYS) {
+            if (!String.valueOf(firstProperties.opt(key)).equals(String.valueOf(secondProperties.opt(key)))) {
+                return null;
+            }
+        }
+
+        try {
+            // the metadata of the second, with copies of the operations of the first
+            JSONObject properties = new JSONObject();
+            Iterator<String> keys = secondProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!isOperation(key)) {
+                    properties.put(key, secondProperties.get(key));
+                }
+            }
+            keys = firstProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject operation = firstProperties.optJSONObject(key);
+                if (isOperation(key) && operation != null) {
+                    properties.put(key, copy(operation));
+                }
+            }
+
+            keys = secondProperties.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!isOperation(key)) {
+                    continue;
+                }
+                JSONObject operation = secondProperties.optJSONObject(key);
+                if (operation == null) {
+                    return null;
+                }
+                Iterator<String> propertyKeys = operation.keys();
+                while (propertyKeys.hasNext()) {
+                    String property = propertyKeys.next();
+                    if (!apply(properties, key, property, operation.get(property))) {
+                        return null;
+                    }
+                }
+            }
+
+            return new JSONObject()
+                    .put("event_id", second.opt("event_id"))
+                    .put("properties", properties)
+                    .put("collection", Constants.IDENTIFY_EVENT);
+        } catch (JSONException e) {
+            logger.w(TAG, e.toString());
+            return null;
+        }
+    }
+
+    // applies a single operation on top of the merged operations, false if it cannot be merged
+    private static boolean apply(JSONObject properties, String operation, String property,
+                                 Object value) throws JSONException {
+        String earlier = findOperation(properties, property);
+        if (earlier == null) {
+            putOperation(properties, operation, property, value);
+            return true;
+        }
+
+        if (operation.equals(Constants.AMP_OP_SET) || operation.equals(Constants.AMP_OP_UNSET)) {
+            removeOperation(properties, earlier, property);
+            putOperation(properties, operation, property, value);
+            return true;
+        }
+        if (operation.equals(Constants.AMP_OP_SET_ONCE)) {
+            if (earlier.equals(Constants.AMP_OP_UNSET)) {
+                removeOperation(properties, earlier, property);
+                putOperation(properties, Constants.AMP_OP_SET, property, value);
+            }
+            // otherwise the property already has a value
+            return true;
+        }
+        if (operation.equals(Constants.AMP_OP_ADD) && earlier.equals(Constants.AMP_OP_ADD)) {
+            JSONObject adds = properties.getJSONObject(earlier);
+            Object sum = add(adds.get(property), value);
+            if (sum == null) {
+                return false;
+            }
+            adds.put(property, sum);
+            return true;
+        }
+        return false;
+    }
+
+    private static Object add(Object a, Object b) {
+        if (!(a instanceof Number) || !(b instanceof Number)) {
+            return null;
+        }
+        if (isIntegral(a) && isIntegral(b)) {
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        }
+        return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long;
+    }
+
+    private static String findOperation(JSONObject properties, String property) {
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            JSONObject operation = properties.optJSONObject(key);
+            if (isOperation(key) && operation != null && operation.has(property)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static void putOperation(JSONObject properties, String operation, String property,
+                                     Object value) throws JSONException {
+        JSONObject values = properties.optJSONObject(operation);
+        if (values == null) {
+            values = new JSONObject();
+            properties.put(operation, values);
+        }
+        values.put(property, value);
+    }
+
+    private static void removeOperation(JSONObject properties, String operation, String property) {
+        JSONObject values = properties.optJSONObject(operation);
+        values.remove(property);
+        if (values.length() == 0) {
+            properties.remove(operation);
+        }
+    }
+
+    private static JSONObject copy(JSONObject object) throws JSONException {
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            copy.put(key, object.get(key));
+        }
+        return copy;
+    }
+
+    private static boolean isOperation(String key) {
+        return key.startsWith("$");
+    }
+}
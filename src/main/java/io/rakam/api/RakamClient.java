@@ -9,6 +9,7 @@ import android.os.Build;
 import android.text.TextUtils;
 import android.util.Pair;
 import okhttp3.*;
+import okio.Utf8;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -78,9 +79,23 @@ public class RakamClient {
      * The pref/database key for the previous session ID value.
      */
     public static final String PREVIOUS_SESSION_ID_KEY = "previous_session_id";
+    /**
+     * The database key for the learned upload batch size in bytes.
+     */
+    public static final String UPLOAD_BATCH_BYTES_KEY = "upload_batch_bytes";
+    /**
+     * The event store key marking that the database has been moved into the event store.
+     */
+    static final String EVENT_STORE_MIGRATED_KEY = "event_store_migrated";
 
     private static final RakamLog logger = RakamLog.getLogger();
 
+    // outcomes of an upload request
+    static final int UPLOAD_SUCCESS = 0;
+    static final int UPLOAD_FAILED = 1;
+    static final int UPLOAD_RETRY = 2;
+    static final int UPLOAD_NETWORK_ERROR = 3;
+
     /**
      * The Android App Context.
      */
@@ -93,6 +108,11 @@ public class RakamClient {
      * The shared Rakam database helper instance.
      */
     protected DatabaseHelper dbHelper;
+    /**
+     * The segment log event store, if enabled, which replaces the database for events and
+     * metadata.
+     */
+    volatile EventStore eventStore;
     /**
      * The Rakam App API key.
      */
@@ -110,11 +130,16 @@ public class RakamClient {
      */
     protected String deviceId;
     private boolean newDeviceIdPerInstall = false;
+    private boolean segmentLogEventStore = false;
     private boolean useAdvertisingIdForDeviceId = false;
     protected boolean initialized = false;
     private boolean optOut = false;
     private boolean offline = false;
     TrackingOptions trackingOptions = new TrackingOptions();
+    /**
+     * The device properties of every event, rebuilt when they go stale.
+     */
+    private volatile DeviceContext deviceContext;
     JSONObject apiPropertiesTrackingOptions;
     /**
      * The device's Platform value.
@@ -128,6 +153,7 @@ public class RakamClient {
     long lastEventId = -1;
     long lastIdentifyId = -1;
     long lastEventTime = -1;
+    private volatile boolean lastEventTimeChanged = false;
     long previousSessionId = -1;
 
     private DeviceInfo deviceInfo;
@@ -138,7 +164,14 @@ public class RakamClient {
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
+    private EventEvictionPolicy eventEvictionPolicy = EventEvictionPolicy.dropOldest();
+    private final int[] priorityMaxCounts = {-1, -1, -1};
+    private long eventMaxBytes = Constants.EVENT_MAX_BYTES;
+    private volatile Map<String, Integer> eventPriorities = defaultEventPriorities();
+    private EventIdGenerator eventIdGenerator = EventIdGenerator.timeOrdered();
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
+    private int eventWriteBufferSize = Constants.EVENT_WRITE_BUFFER_SIZE;
+    private long eventWriteBufferMillis = Constants.EVENT_WRITE_BUFFER_MILLIS;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
     private boolean backoffUpload = false;
@@ -148,12 +181,51 @@ public class RakamClient {
     private boolean inForeground = false;
     private JSONObject superProperties;
     private boolean flushEventsOnClose = true;
+    private boolean keepDatabaseConnectionOpen = false;
+    private boolean databaseWriteAheadLogging = false;
+    private boolean databaseDurableWrites = true;
+    private boolean databaseCompactEncoding = false;
+    private long locationTtlMillis = Constants.LOCATION_TTL_MILLIS;
+    private boolean passiveLocationUpdates = false;
+    private volatile boolean compressUploads = false;
+    private volatile boolean coalesceIdentifys = false;
+    private final EventSampler eventSampler = new EventSampler();
+    private final EventAggregator eventAggregator = new EventAggregator(Constants.MAX_AGGREGATE_KEYS);
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private AtomicBoolean writeBufferFlushScheduled = new AtomicBoolean(false);
+    /**
+     * Serialized events and identifys waiting to be written to the database, as
+     * (table name, event string) pairs in the order they were logged.
+     */
+    final List<Pair<String, String>> pendingEventWrites = new ArrayList<Pair<String, String>>();
+    /**
+     * The {@link EventPriority} of each of the pendingEventWrites, guarded by the same lock.
+     */
+    private final List<Integer> pendingEventPriorities = new ArrayList<Integer>();
     /**
      * Whether or not the SDK is in the process of uploading events.
      */
     AtomicBoolean uploadingCurrently = new AtomicBoolean(false);
+    /**
+     * The upload batches in flight while uploadingCurrently is set.
+     */
+    final UploadWindow uploadWindow = new UploadWindow(Constants.UPLOAD_WINDOW_SIZE);
+    /**
+     * Whether a failed batch asked to be resent right away while other batches were still in
+     * flight, so that the upload is retried once the window is released. Only used on the
+     * logThread.
+     */
+    private boolean uploadRetryPending = false;
+    /**
+     * Learns the upload batch size in bytes, on top of the eventUploadMaxBatchSize and
+     * backoffUploadBatchSize event count limits.
+     */
+    final UploadBatchSizer uploadBatchSizer = new UploadBatchSizer(
+            Constants.UPLOAD_BATCH_MIN_BYTES, Constants.UPLOAD_BATCH_MAX_BYTES,
+            Constants.UPLOAD_BATCH_BYTES_STEP, Constants.UPLOAD_TARGET_LATENCY_MILLIS,
+            Constants.UPLOAD_BATCH_BYTES
+    );
 
     /**
      * The last SDK error - used for testing.
@@ -171,6 +243,23 @@ public class RakamClient {
      * The background event uploading worker thread instance.
      */
     WorkerThread httpThread = new WorkerThread("httpThread");
+    /**
+     * Retries uploads that failed on the network, with exponential backoff.
+     */
+    final UploadScheduler uploadScheduler = new UploadScheduler(logThread, new Runnable() {
+        @Override
+        public void run() {
+            if (Utils.isEmptyString(apiKey)) {  // in case initialization failed
+                return;
+            }
+            updateServer();
+        }
+    }, Constants.UPLOAD_RETRY_BASE_MILLIS, Constants.UPLOAD_RETRY_MAX_MILLIS) {
+        @Override
+        protected long currentTimeMillis() {
+            return getCurrentTimeMillis();
+        }
+    };
 
     /**
      * Instantiates a new default instance RakamClient and starts worker threads.
@@ -272,8 +361,21 @@ public class RakamClient {
                             RakamClient.upgradePrefs(context);
                             RakamClient.upgradeSharedPrefsToDB(context);
                         }
+                        dbHelper.setKeepConnectionOpen(keepDatabaseConnectionOpen);
+                        dbHelper.setWriteAheadLogging(databaseWriteAheadLogging);
+                        dbHelper.setDurableWrites(databaseDurableWrites);
+                        dbHelper.setCompactEncoding(databaseCompactEncoding);
+                        if (segmentLogEventStore) {
+                            SegmentLogEventStore store = SegmentLogEventStore.getEventStore(context, instanceName);
+                            if (store != null) {
+                                migrateDatabaseToEventStore(dbHelper, store);
+                            }
+                            eventStore = store;  // stays on the database if the files cannot be opened
+                        }
                         httpClient = new OkHttpClient();
                         deviceInfo = new DeviceInfo(context);
+                        deviceInfo.setLocationTtlMillis(locationTtlMillis);
+                        deviceInfo.setPassiveLocationUpdates(passiveLocationUpdates);
                         deviceId = initializeDeviceId();
                         if (enableDiagnosticLogging) {
                             Diagnostics.getLogger().enableLogging(httpClient, apiKey, deviceId);
@@ -282,11 +384,11 @@ public class RakamClient {
 
                         if (userId != null) {
                             client.userId = userId;
-                            dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                            getEventStore().insertOrReplaceKeyValue(USER_ID_KEY, userId);
                         } else {
-                            client.userId = dbHelper.getValue(USER_ID_KEY);
+                            client.userId = getEventStore().getValue(USER_ID_KEY);
                         }
-                        final Long optOutLong = dbHelper.getLongValue(OPT_OUT_KEY);
+                        final Long optOutLong = getEventStore().getLongValue(OPT_OUT_KEY);
                         optOut = optOutLong != null && optOutLong == 1;
 
                         // try to restore previous session id
@@ -299,6 +401,8 @@ public class RakamClient {
                         lastEventId = getLongvalue(LAST_EVENT_ID_KEY, -1);
                         lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
                         lastEventTime = getLongvalue(LAST_EVENT_TIME_KEY, -1);
+                        uploadBatchSizer.setBatchBytes(
+                                getLongvalue(UPLOAD_BATCH_BYTES_KEY, Constants.UPLOAD_BATCH_BYTES));
 
                         // install database reset listener to re-insert metadata in memory
                         dbHelper.setDatabaseResetListener(new DatabaseResetListener() {
@@ -314,12 +418,12 @@ public class RakamClient {
 
                         initialized = true;
 
-                        String value = dbHelper.getValue(SUPER_PROPERTIES_KEY);
+                        String value = getEventStore().getValue(SUPER_PROPERTIES_KEY);
                         if (value != null) {
                             try {
                                 superProperties = new JSONObject(value);
                             } catch (JSONException e) {
-                                dbHelper.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
+                                getEventStore().insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
                             }
                         }
 
@@ -346,7 +450,7 @@ public class RakamClient {
      */
     public RakamClient setSuperProperties(JSONObject superProperties) {
         this.superProperties = superProperties;
-        dbHelper.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, superProperties.toString());
+        getEventStore().insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, superProperties.toString());
         return this;
     }
 
@@ -411,6 +515,22 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Store events and metadata in memory-mapped append-only log files instead of the SQLite
+     * database (disabled by default). Appending to a log is much cheaper than inserting into
+     * SQLite at high event rates. Must be called before initialize. The first time it is enabled,
+     * the metadata and unsent events are moved over from the database. They are not moved back
+     * when it is disabled again: events still unsent at that point stay in the log files, and
+     * are only uploaded once the log file event store is enabled again.
+     *
+     * @param segmentLogEventStore whether to use the log file event store
+     * @return the RakamClient
+     */
+    public RakamClient enableSegmentLogEventStore(boolean segmentLogEventStore) {
+        this.segmentLogEventStore = segmentLogEventStore;
+        return this;
+    }
+
     /**
      * Whether to use the Android advertising ID (ADID) as the user's device ID.
      *
@@ -461,6 +581,49 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets how long the SDK reuses a location read from the location providers before reading
+     * it again. Looking up the last known location is a call into the system for every
+     * provider, so by default it is done at most once a minute. Set to 0 to read the location
+     * for every event.
+     *
+     * @param locationTtlMillis the location time to live in milliseconds
+     * @return the RakamClient
+     */
+    public RakamClient setLocationTtlMillis(final long locationTtlMillis) {
+        this.locationTtlMillis = locationTtlMillis;
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfo != null) {
+                    deviceInfo.setLocationTtlMillis(locationTtlMillis);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Enable or disable listening to the passive location provider while location listening
+     * is enabled. Location fixes requested by other apps then refresh the location added to
+     * events at no extra cost. Requires the ACCESS_FINE_LOCATION permission.
+     *
+     * @param passiveLocationUpdates whether to listen to passive location updates
+     * @return the RakamClient
+     */
+    public RakamClient setPassiveLocationUpdates(final boolean passiveLocationUpdates) {
+        this.passiveLocationUpdates = passiveLocationUpdates;
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfo != null) {
+                    deviceInfo.setPassiveLocationUpdates(passiveLocationUpdates);
+                }
+            }
+        });
+        return this;
+    }
+
     /**
      * Sets event upload threshold. The SDK will attempt to batch upload unsent events
      * every eventUploadPeriodMillis milliseconds, or if the unsent event count exceeds the
@@ -487,11 +650,27 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets the upload window size. This is the number of upload requests that may be in flight at
+     * the same time, each with up to eventUploadMaxBatchSize events. A window above 1 drains a
+     * large backlog of unsent events (for example after being offline) in fewer round trips.
+     * Uploaded events are only removed once every earlier batch has been accepted as well, so
+     * events are never lost when one request of the window fails.
+     *
+     * @param uploadWindowSize the number of concurrent upload requests, at least 1
+     * @return the RakamClient
+     */
+    public RakamClient setUploadWindowSize(int uploadWindowSize) {
+        uploadWindow.setCapacity(Math.max(uploadWindowSize, 1));
+        return this;
+    }
+
     /**
      * Sets event max count. This is the maximum number of unsent events to keep on the device
      * (for example if the device does not have internet connectivity and cannot upload events).
      * If the number of unsent events exceeds the max count, then the SDK begins dropping events,
-     * starting from the earliest logged.
+     * starting from the earliest logged bulk events, then normal events, and critical events
+     * last (see {@link #setEventEvictionPolicy} and {@link #setEventPriority}).
      *
      * @param eventMaxCount the event max count
      * @return the RakamClient
@@ -501,6 +680,146 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets the maximum number of unsent events of one {@link EventPriority} to keep on the
+     * device, on top of the overall event max count. Once a priority goes over its max count,
+     * its earliest logged events are dropped. There is no max count per priority by default.
+     *
+     * @param priority      the event priority
+     * @param eventMaxCount the event max count of the priority, negative for none
+     * @return the RakamClient
+     */
+    public RakamClient setEventMaxCount(int priority, int eventMaxCount) {
+        if (!EventPriority.isValid(priority)) {
+            logger.w(TAG, String.format("Invalid event priority %d, ignoring", priority));
+            return this;
+        }
+        this.priorityMaxCounts[priority] = eventMaxCount < 0 ? -1 : eventMaxCount;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes the unsent events and identifys may take on the device,
+     * on top of the event max count. Rows vary in size by orders of magnitude, so a byte budget
+     * bounds the database size much more closely than a row count. Once the stored events go
+     * over the budget, the SDK drops events the same way it does over the event max count, and
+     * identifys only when no events are left. Sizes are counted as stored, see
+     * {@link #getEventStorageBytes()}. There is no byte budget by default.
+     *
+     * @param eventMaxBytes the byte budget, negative for none
+     * @return the RakamClient
+     */
+    public RakamClient setEventMaxBytes(long eventMaxBytes) {
+        this.eventMaxBytes = eventMaxBytes < 0 ? -1 : eventMaxBytes;
+        return this;
+    }
+
+    /**
+     * Returns the byte budget of the unsent events, see {@link #setEventMaxBytes(long)}.
+     *
+     * @return the byte budget, -1 if there is none
+     */
+    public long getEventMaxBytes() {
+        return eventMaxBytes;
+    }
+
+    /**
+     * Returns the number of bytes the unsent events and identifys currently take, counted as
+     * they are stored: the UTF-8 text of the events, or their compact encoding when
+     * {@link #setDatabaseCompactEncoding(boolean)} is enabled. Storage overhead such as the
+     * database pages and indexes is not included. Events still waiting in the write buffer
+     * are not counted until they are written.
+     *
+     * @return the bytes taken by the unsent events and identifys
+     */
+    public long getEventStorageBytes() {
+        if (!contextAndApiKeySet("getEventStorageBytes()")) {
+            return 0;
+        }
+        EventStore eventStore = getEventStore();
+        return eventStore.getEventBytes() + eventStore.getIdentifyBytes();
+    }
+
+    /**
+     * Sets the {@link EventPriority} of an event type. Once the unsent events reach the event
+     * max count, bulk events are dropped before normal ones, and critical events only when
+     * nothing else is left. Critical events are never dropped by the event eviction policy,
+     * and, apart from session events, are uploaded right away instead of waiting for the upload
+     * threshold. Revenue and session events are critical by default, all other events normal.
+     * Identifys are kept in their own queue and treated as critical, except that the eviction
+     * policy can still drop them, see {@link EventEvictionPolicy#dropTypes(String...)}. Can be
+     * changed at any time, it applies to events logged afterwards.
+     *
+     * @param eventType the event type
+     * @param priority  one of {@link EventPriority#CRITICAL}, {@link EventPriority#NORMAL} and
+     *                  {@link EventPriority#BULK}
+     * @return the RakamClient
+     */
+    public RakamClient setEventPriority(String eventType, int priority) {
+        if (Utils.isEmptyString(eventType) || !EventPriority.isValid(priority)) {
+            logger.w(TAG, String.format(
+                    "Invalid priority %d for event type %s, ignoring", priority, eventType
+            ));
+            return this;
+        }
+        synchronized (this) {
+            Map<String, Integer> updated = new HashMap<String, Integer>(eventPriorities);
+            updated.put(eventType, priority);
+            eventPriorities = Collections.unmodifiableMap(updated);
+        }
+        return this;
+    }
+
+    /**
+     * Returns the priority of an event type, see {@link #setEventPriority(String, int)}.
+     *
+     * @param eventType the event type
+     * @return the {@link EventPriority} of the event type
+     */
+    public int getEventPriority(String eventType) {
+        if (Constants.IDENTIFY_EVENT.equals(eventType)) {
+            return EventPriority.CRITICAL;
+        }
+        Integer priority = eventPriorities.get(eventType);
+        return priority == null ? EventPriority.NORMAL : priority;
+    }
+
+    private static Map<String, Integer> defaultEventPriorities() {
+        Map<String, Integer> priorities = new HashMap<String, Integer>();
+        priorities.put(Constants.REVENUE_EVENT, EventPriority.CRITICAL);
+        priorities.put(START_SESSION_EVENT, EventPriority.CRITICAL);
+        priorities.put(END_SESSION_EVENT, EventPriority.CRITICAL);
+        return Collections.unmodifiableMap(priorities);
+    }
+
+    /**
+     * Sets which events are dropped once the number of unsent events reaches the event max
+     * count: the earliest logged ones (the default), newly logged ones, or newly logged ones of
+     * some event types.
+     *
+     * @param eventEvictionPolicy the event eviction policy
+     * @return the RakamClient
+     */
+    public RakamClient setEventEvictionPolicy(EventEvictionPolicy eventEvictionPolicy) {
+        this.eventEvictionPolicy = eventEvictionPolicy == null ?
+                EventEvictionPolicy.dropOldest() : eventEvictionPolicy;
+        return this;
+    }
+
+    /**
+     * Sets how the {@code _id} of every event is generated. The default,
+     * {@link EventIdGenerator#timeOrdered()}, generates ids that sort by the time the events
+     * were logged without going through SecureRandom for every event.
+     *
+     * @param eventIdGenerator the event id generator, null for the default
+     * @return the RakamClient
+     */
+    public RakamClient setEventIdGenerator(EventIdGenerator eventIdGenerator) {
+        this.eventIdGenerator = eventIdGenerator == null ?
+                EventIdGenerator.timeOrdered() : eventIdGenerator;
+        return this;
+    }
+
     /**
      * Sets event upload period millis. The SDK will attempt to batch upload unsent events
      * every eventUploadPeriodMillis milliseconds, or if the unsent event count exceeds the
@@ -514,6 +833,38 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Sets event write buffer size. By default every logged event is written to the database in
+     * its own transaction. When set above 1, logged events are buffered in memory and written in
+     * a single transaction once the buffer holds this many events, or after
+     * eventWriteBufferMillis milliseconds, whichever comes first. Buffered events are always
+     * written before uploading and when the app leaves the foreground, but events still in the
+     * buffer are lost if the process is killed. While buffering, logged events have no
+     * {@code _local_id} property and the log methods return -1 instead of the event id, since
+     * events only get their ids once written, and the last event time is persisted once per
+     * write instead of for every event.
+     *
+     * @param eventWriteBufferSize the maximum number of buffered events
+     * @return the RakamClient
+     */
+    public RakamClient setEventWriteBufferSize(int eventWriteBufferSize) {
+        this.eventWriteBufferSize = eventWriteBufferSize;
+        return this;
+    }
+
+    /**
+     * Sets event write buffer millis. This bounds how long a logged event can stay in the write
+     * buffer before it is written to the database. Only used if the event write buffer size is
+     * greater than 1.
+     *
+     * @param eventWriteBufferMillis the maximum time an event is buffered in memory
+     * @return the RakamClient
+     */
+    public RakamClient setEventWriteBufferMillis(long eventWriteBufferMillis) {
+        this.eventWriteBufferMillis = eventWriteBufferMillis;
+        return this;
+    }
+
     /**
      * Sets min time between sessions millis.
      *
@@ -563,7 +914,7 @@ public class RakamClient {
                     return;
                 }
                 client.optOut = optOut;
-                dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
+                getEventStore().insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
             }
         });
         return this;
@@ -619,6 +970,20 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Tells the SDK whether the device has network connectivity, for example from a
+     * CONNECTIVITY_ACTION broadcast receiver. Uploads are held back while disconnected, and
+     * unsent events are uploaded right away once connectivity returns, without waiting for a
+     * pending retry.
+     *
+     * @param connected whether the device has network connectivity
+     * @return the RakamClient
+     */
+    public RakamClient notifyConnectivityChanged(boolean connected) {
+        uploadScheduler.onConnectivityChanged(connected);
+        return this;
+    }
+
     /**
      * Enable/disable flushing of unsent events on app close (enabled by default).
      *
@@ -630,6 +995,169 @@ public class RakamClient {
         return this;
     }
 
+    /**
+     * Keep the SQLite connection open between database calls made by the SDK (disabled by
+     * default). By default every read and write opens and closes the database, which dominates
+     * the cost of logging an event at high event rates. When enabled, the logThread holds a single
+     * long-lived connection that is only closed if the database has to be reset, or when this is
+     * called again with false. The connection also keeps the compiled statements for inserting
+     * events, storing values and removing uploaded events, instead of compiling them per call.
+     *
+     * @param keepDatabaseConnectionOpen whether to keep the database connection open
+     * @return the RakamClient
+     */
+    public RakamClient setKeepDatabaseConnectionOpen(final boolean keepDatabaseConnectionOpen) {
+        this.keepDatabaseConnectionOpen = keepDatabaseConnectionOpen;
+        if (dbHelper == null) {  // applied in initialize()
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.setKeepConnectionOpen(keepDatabaseConnectionOpen);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Use SQLite write-ahead logging for the event database (disabled by default). Commits then
+     * append to a log file instead of rewriting a rollback journal, which makes logging events
+     * cheaper, and reading events for an upload no longer waits for a write to finish.
+     * Only supported on API 16 and above, ignored on older devices.
+     *
+     * @param databaseWriteAheadLogging whether to enable write-ahead logging
+     * @return the RakamClient
+     */
+    public RakamClient setDatabaseWriteAheadLogging(final boolean databaseWriteAheadLogging) {
+        this.databaseWriteAheadLogging = databaseWriteAheadLogging;
+        if (dbHelper == null) {  // applied in initialize()
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.setWriteAheadLogging(databaseWriteAheadLogging);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Whether every database commit waits for the data to be synced to disk (enabled by
+     * default). Disabling it trades durability for speed: a crash or power loss may lose the
+     * most recently logged events. Together with write-ahead logging the database cannot get
+     * corrupted this way. Only supported on API 16 and above, ignored on older devices.
+     *
+     * @param databaseDurableWrites true for durable writes, false for fast writes
+     * @return the RakamClient
+     */
+    public RakamClient setDatabaseDurableWrites(final boolean databaseDurableWrites) {
+        this.databaseDurableWrites = databaseDurableWrites;
+        if (dbHelper == null) {  // applied in initialize()
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.setDurableWrites(databaseDurableWrites);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Store unsent events in the database in a compact binary format instead of JSON text
+     * (disabled by default). The keys every event repeats are stored once, in a dictionary,
+     * so the database takes a fraction of the space and fewer pages are written per event.
+     * Events are converted back to JSON only when they are read for an upload. Events stored
+     * in either format stay readable, so this can be switched at any time. Does not apply to
+     * the segment log event store.
+     *
+     * @param databaseCompactEncoding whether to store new events in the compact format
+     * @return the RakamClient
+     */
+    public RakamClient setDatabaseCompactEncoding(final boolean databaseCompactEncoding) {
+        this.databaseCompactEncoding = databaseCompactEncoding;
+        if (dbHelper == null) {  // applied in initialize()
+            return this;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.setCompactEncoding(databaseCompactEncoding);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Gzip-compress event upload requests (disabled by default). Events share most of their keys
+     * and device fields, so batches usually shrink several-fold. If the server rejects a
+     * compressed request with a 415, or a 400 that names the content encoding, compression is
+     * turned off and the batch is sent again uncompressed. Any other 400 is handled as a batch
+     * that is too large, with compression left on.
+     *
+     * @param compressUploads whether to gzip-compress event uploads
+     * @return the RakamClient
+     */
+    public RakamClient setCompressUploads(boolean compressUploads) {
+        this.compressUploads = compressUploads;
+        return this;
+    }
+
+    /**
+     * Merge consecutive identifys into one before uploading them (disabled by default), for apps
+     * that set user properties on every screen. Identifys are merged only when no event was
+     * logged between them and they belong to the same user and session; the merged identify has
+     * the same effect as applying them in order. See {@link Identify}.
+     *
+     * @param coalesceIdentifys whether to merge consecutive identifys
+     * @return the RakamClient
+     */
+    public RakamClient setCoalesceIdentifys(boolean coalesceIdentifys) {
+        this.coalesceIdentifys = coalesceIdentifys;
+        return this;
+    }
+
+    /**
+     * Sample the events of a high-volume event type, keeping them for a fraction of devices
+     * only. Whether a device is kept is decided by a hash of its device id, so each device
+     * either sends all of the sampled events or none, and the same devices are kept across all
+     * sampled event types. Kept events carry the rate in their {@code _sample_rate} property.
+     * Sampled out events are dropped before they are serialized or stored, but still count as
+     * session activity. Identifys are never sampled. Can be changed at any time.
+     *
+     * @param eventType the event type
+     * @param rate      the fraction of devices to keep the events of, between 0 and 1; 1 stops
+     *                  sampling the event type
+     * @return the RakamClient
+     */
+    public RakamClient setEventSampleRate(String eventType, double rate) {
+        if (Utils.isEmptyString(eventType) || Double.isNaN(rate) || rate < 0 || rate > 1) {
+            logger.w(TAG, String.format(
+                    "Invalid sample rate %s for event type %s, ignoring", rate, eventType
+            ));
+            return this;
+        }
+        eventSampler.setRate(eventType, rate);
+        return this;
+    }
+
+    /**
+     * Returns the sample rate of an event type, see {@link #setEventSampleRate(String, double)}.
+     *
+     * @param eventType the event type
+     * @return the sample rate, 1 if the event type is not sampled
+     */
+    public double getEventSampleRate(String eventType) {
+        return eventSampler.getRate(eventType);
+    }
+
     /**
      * Track session events rakam client. If enabled then the SDK will automatically send
      * start and end session events to mark the start and end of the user's sessions.
@@ -708,6 +1236,23 @@ public class RakamClient {
         }
     }
 
+    /**
+     * Log an event built with an {@link EventBuilder}. The properties are serialized straight
+     * from the builder, without a JSONObject, and the builder is recycled afterwards, so it
+     * must not be used once passed here.
+     *
+     * @param event the event
+     */
+    public void logEvent(EventBuilder event) {
+        try {
+            if (validateLogEvent(event.eventType)) {
+                logEvent(event.eventType, null, event, getCurrentTimeMillis(), event.outOfSession);
+            }
+        } finally {
+            event.recycle();
+        }
+    }
+
     /**
      * Log an event with the specified event type.
      * <b>Note:</b> this is version is synchronous and blocks the main thread until done.
@@ -802,6 +1347,82 @@ public class RakamClient {
         });
     }
 
+    /**
+     * Adds to a counter kept in memory instead of logging an event. Counters, gauges and
+     * histograms are summarized into one event per collection and dimensions whenever events
+     * are uploaded, or the app goes to the background. A counter summary has the number of
+     * increments in {@code _count} and the total in {@code _sum}, and every summary has the
+     * time of the first and last update in {@code _start_time} and {@code _end_time}. Use this
+     * for events that are only ever counted, where a single summary replaces thousands of rows.
+     * Summaries are logged out of session.
+     *
+     * @param collection the event type of the summary event
+     * @param dimensions the properties of the summary event, or null. Each distinct set of
+     *                   dimensions is a separate counter, so keep them few and small.
+     * @param delta      the amount to add
+     */
+    public void incrementCounter(String collection, JSONObject dimensions, long delta) {
+        if (!validateLogEvent(collection)) {
+            return;
+        }
+        if (eventAggregator.addCount(collection, dimensions, delta, getCurrentTimeMillis())) {
+            updateServerLater(eventUploadPeriodMillis);
+        }
+    }
+
+    /**
+     * Records the value of a gauge kept in memory, see
+     * {@link #incrementCounter(String, JSONObject, long)}. A gauge summary has the number of
+     * values in {@code _count}, and their {@code _sum}, {@code _min}, {@code _max} and
+     * {@code _last}.
+     *
+     * @param collection the event type of the summary event
+     * @param dimensions the properties of the summary event, or null
+     * @param value      the value
+     */
+    public void recordGauge(String collection, JSONObject dimensions, double value) {
+        recordValue(EventAggregator.GAUGE, collection, dimensions, value);
+    }
+
+    /**
+     * Records a value into a histogram kept in memory, see
+     * {@link #incrementCounter(String, JSONObject, long)}. A histogram summary has the number
+     * of values in {@code _count}, their {@code _sum}, {@code _min} and {@code _max}, and the
+     * counts of values per power of two in {@code _buckets}, keyed by the upper bound of each
+     * bucket, with values up to 0 under "0".
+     *
+     * @param collection the event type of the summary event
+     * @param dimensions the properties of the summary event, or null
+     * @param value      the value
+     */
+    public void recordHistogram(String collection, JSONObject dimensions, double value) {
+        recordValue(EventAggregator.HISTOGRAM, collection, dimensions, value);
+    }
+
+    private void recordValue(int kind, String collection, JSONObject dimensions, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            logger.w(TAG, String.format("Invalid value %s for %s, ignoring", value, collection));
+            return;
+        }
+        if (!validateLogEvent(collection)) {
+            return;
+        }
+        if (eventAggregator.addValue(kind, collection, dimensions, value, getCurrentTimeMillis())) {
+            updateServerLater(eventUploadPeriodMillis);
+        }
+    }
+
+    // logs the summaries of the counters, gauges and histograms. Note: always call this on logThread
+    private void flushAggregates() {
+        if (eventAggregator.isEmpty()) {
+            return;
+        }
+        long timestamp = getCurrentTimeMillis();
+        for (Pair<String, JSONObject> summary : eventAggregator.drain()) {
+            logEvent(summary.first, summary.second, timestamp, true);
+        }
+    }
+
     /**
      * Log event. Internal method to handle the asynchronous logging of events on background
      * thread.
@@ -813,6 +1434,11 @@ public class RakamClient {
      * @return the event ID if succeeded, else -1.
      */
     protected long logEvent(String eventType, JSONObject eventProperties, long timestamp, boolean outOfSession) {
+        return logEvent(eventType, eventProperties, null, timestamp, outOfSession);
+    }
+
+    private long logEvent(String eventType, JSONObject eventProperties,
+                          EventBuilder builderProperties, long timestamp, boolean outOfSession) {
         logger.d(TAG, "Logged event to Rakam: " + eventType);
 
         if (optOut) {
@@ -821,108 +1447,55 @@ public class RakamClient {
 
         // skip session check if logging start_session or end_session events
         boolean loggingSessionEvent = trackingSessionEvents &&
-                (eventType.equals(START_SESSION_EVENT) || eventType.equals(END_SESSION_EVENT));
-
-        if (!loggingSessionEvent && !outOfSession) {
-            // default case + corner case when async logEvent between onPause and onResume
-            if (!inForeground) {
-                startNewSessionIfNeeded(timestamp);
-            } else {
-                refreshSessionTime(timestamp);
-            }
-        }
-
-        long result = -1;
-        JSONObject properties = new JSONObject();
-        try {
-            properties.put("_id", UUID.randomUUID().toString());
-            properties.put("_local_id", lastEventId);
-            properties.put("_time", timestamp);
-            properties.put("_user", replaceWithJSONNull(userId));
-            properties.put("_device_id", replaceWithJSONNull(deviceId));
-            properties.put("_session_id", outOfSession ? -1 : sessionId);
-
-            if (trackingOptions.shouldTrackVersionName()) {
-                properties.put("_version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            }
-
-            if (trackingOptions.shouldTrackOsName()) {
-                properties.put("_os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            }
-
-            if (trackingOptions.shouldTrackOsVersion()) {
-                properties.put("_os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            }
-
-            if (trackingOptions.shouldTrackDeviceBrand()) {
-                properties.put("_device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            }
-
-            if (trackingOptions.shouldTrackDeviceManufacturer()) {
-                properties.put("_device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            }
+                (eventType.equals(START_SESSION_EVENT) || eventType.equals(END_SESSION_EVENT));
 
-            if (trackingOptions.shouldTrackDeviceModel()) {
-                properties.put("_device_model", replaceWithJSONNull(deviceInfo.getModel()));
+        if (!loggingSessionEvent && !outOfSession) {
+            // default case + corner case when async logEvent between onPause and onResume
+            if (!inForeground) {
+                startNewSessionIfNeeded(timestamp);
+            } else {
+                refreshSessionTime(timestamp);
             }
+        }
 
-            if (trackingOptions.shouldTrackCarrier()) {
-                properties.put("_carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
+        double sampleRate = 1;
+        if (eventSampler.isSampled() && !eventType.equals(Constants.IDENTIFY_EVENT)) {
+            sampleRate = eventSampler.getRate(eventType);
+            if (!eventSampler.keep(deviceId, sampleRate)) {
+                return -1;
             }
+        }
 
-            if (trackingOptions.shouldTrackCountry()) {
-                properties.put("_country_code", replaceWithJSONNull(deviceInfo.getCountry()));
+        long result = -1;
+        try {
+            // the event and super properties override the properties added here
+            EventSerializer serializer = new EventSerializer(
+                    eventProperties, builderProperties, superProperties)
+                    .id("_id", eventIdGenerator, timestamp);
+            // buffered events only get their database ids once written, so the last id would
+            // repeat for every event in the buffer
+            if (eventWriteBufferSize <= 1) {
+                serializer.property("_local_id", lastEventId);
             }
-
-            if (trackingOptions.shouldTrackLanguage()) {
-                properties.put("_language", replaceWithJSONNull(deviceInfo.getLanguage()));
+            serializer.property("_time", timestamp)
+                    .property("_user", userId)
+                    .property("_device_id", deviceId)
+                    .property("_session_id", outOfSession ? -1 : sessionId);
+            if (sampleRate < 1) {
+                serializer.property("_sample_rate", sampleRate);
             }
 
-            if (trackingOptions.shouldTrackPlatform()) {
-                properties.put("_platform", platform);
-            }
-            properties.put("_library_name", Constants.LIBRARY);
-            properties.put("_library_version", Constants.VERSION);
-            properties.put("_ip", true);
+            getDeviceContext().writeTo(serializer);
 
             if (trackingOptions.shouldTrackLatLng()) {
                 Location location = deviceInfo.getMostRecentLocation();
                 if (location != null) {
-                    properties.put("_latitude", location.getLatitude());
-                    properties.put("_longitude", location.getLongitude());
-                }
-            }
-
-            if (trackingOptions.shouldTrackAdid() && deviceInfo.getAdvertisingId() != null) {
-                properties.put("_android_adid", deviceInfo.getAdvertisingId());
-            }
-
-            properties.put("_limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
-            properties.put("_gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
-
-            if (eventProperties != null) {
-                Iterator<String> keys = eventProperties.keys();
-                while (keys.hasNext()) {
-                    String next = keys.next();
-                    properties.put(next, eventProperties.get(next));
-                }
-            }
-
-            if (superProperties != null) {
-                Iterator<String> keys = superProperties.keys();
-                while (keys.hasNext()) {
-                    String next = keys.next();
-                    if (eventProperties != null && eventProperties.has(next)) {
-                        continue;
-                    }
-                    properties.put(next, superProperties.get(next));
+                    serializer.property("_latitude", location.getLatitude());
+                    serializer.property("_longitude", location.getLongitude());
                 }
             }
 
-            JSONObject event = new JSONObject();
-            event.put("properties", truncate(properties));
-            event.put("collection", replaceWithJSONNull(eventType));
-            result = saveEvent(eventType, event);
+            result = saveEvent(eventType, serializer.toEventString(eventType));
         } catch (JSONException e) {
             logger.e(TAG, String.format(
                     "JSON Serialization of event type %s failed, skipping: %s", eventType, e.toString()
@@ -935,15 +1508,23 @@ public class RakamClient {
         return result;
     }
 
+    private DeviceContext getDeviceContext() {
+        DeviceContext context = deviceContext;
+        if (context == null || !context.isCurrent(deviceInfo, trackingOptions, platform)) {
+            context = DeviceContext.build(deviceInfo, trackingOptions, platform);
+            deviceContext = context;
+        }
+        return context;
+    }
+
     /**
      * Save event long. Internal method to save an event to the database.
      *
-     * @param eventType the event type
-     * @param event     the event
-     * @return the event ID if succeeded, else -1
+     * @param eventType   the event type
+     * @param eventString the serialized event
+     * @return the event ID if succeeded, else -1, also -1 for buffered events
      */
-    protected long saveEvent(String eventType, JSONObject event) {
-        String eventString = event.toString();
+    protected long saveEvent(String eventType, String eventString) {
         if (Utils.isEmptyString(eventString)) {
             logger.e(TAG, String.format(
                     "Detected empty event string for event type %s, skipping", eventType
@@ -951,41 +1532,254 @@ public class RakamClient {
             return -1;
         }
 
-        if (eventType.equals(Constants.IDENTIFY_EVENT)) {
-            lastIdentifyId = dbHelper.addIdentify(eventString);
+        boolean isIdentify = eventType.equals(Constants.IDENTIFY_EVENT);
+        String table = isIdentify ? DatabaseHelper.IDENTIFY_TABLE_NAME : DatabaseHelper.EVENT_TABLE_NAME;
+        int priority = getEventPriority(eventType);
+        // session events come with every session change and go out with the next upload anyway
+        boolean uploadNow = priority == EventPriority.CRITICAL && !isIdentify
+                && !eventType.equals(START_SESSION_EVENT) && !eventType.equals(END_SESSION_EVENT);
+        if (eventWriteBufferSize > 1) {
+            boolean bufferFull;
+            synchronized (pendingEventWrites) {
+                if (dropOnOverflow(eventType, table, priority)) {
+                    return -1;
+                }
+                pendingEventWrites.add(new Pair<String, String>(table, eventString));
+                pendingEventPriorities.add(priority);
+                bufferFull = pendingEventWrites.size() >= eventWriteBufferSize;
+            }
+            if (uploadNow) {
+                updateServer();
+            } else if (bufferFull) {
+                flushEventWriteBuffer();
+            } else {
+                flushEventWriteBufferLater();
+                updateServerLater(eventUploadPeriodMillis);
+            }
+            // the event only gets its id once written
+            return -1;
+        }
+
+        // buffering may have been switched off with events still pending, keep them in order
+        writePendingEvents();
+
+        if (dropOnOverflow(eventType, table, priority)) {
+            return -1;
+        }
+
+        if (isIdentify) {
+            lastIdentifyId = getEventStore().addIdentify(eventString);
             setLastIdentifyId(lastIdentifyId);
         } else {
-            lastEventId = dbHelper.addEvent(eventString);
+            lastEventId = getEventStore().addEvent(eventString, priority);
             setLastEventId(lastEventId);
         }
 
-        int numEventsToRemove = Math.min(
+        removeOverflowEvents();
+        if (uploadNow) {
+            updateServer();
+        } else {
+            updateServerIfThresholdReached(1);
+        }
+
+        return isIdentify ? lastIdentifyId : lastEventId;
+    }
+
+    /**
+     * Internal method to write all buffered events to the database in a single transaction,
+     * then upload if that pushed the unsent event count past the upload threshold.
+     */
+    void flushEventWriteBuffer() {
+        int numWritten = writePendingEvents();
+        if (numWritten > 0) {
+            updateServerIfThresholdReached(numWritten);
+        }
+    }
+
+    private void flushEventWriteBufferLater() {
+        if (writeBufferFlushScheduled.getAndSet(true)) {
+            return;
+        }
+
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                writeBufferFlushScheduled.set(false);
+                flushEventWriteBuffer();
+            }
+        }, eventWriteBufferMillis);
+    }
+
+    // writes buffered events to the database, returns the number of events written
+    private int writePendingEvents() {
+        List<Pair<String, String>> writes;
+        List<Integer> priorities;
+        synchronized (pendingEventWrites) {
+            if (pendingEventWrites.isEmpty()) {
+                writeLastEventTime();
+                return 0;
+            }
+            writes = new ArrayList<Pair<String, String>>(pendingEventWrites);
+            priorities = new ArrayList<Integer>(pendingEventPriorities);
+            pendingEventWrites.clear();
+            pendingEventPriorities.clear();
+        }
+
+        boolean hasEvents = false;
+        boolean hasIdentifys = false;
+        for (Pair<String, String> write : writes) {
+            if (write.first.equals(DatabaseHelper.IDENTIFY_TABLE_NAME)) {
+                hasIdentifys = true;
+            } else {
+                hasEvents = true;
+            }
+        }
+
+        Pair<Long, Long> lastIds = getEventStore().addEventsAndIdentifys(writes, priorities);
+        if (hasEvents) {
+            setLastEventId(lastIds.first);
+        }
+        if (hasIdentifys) {
+            setLastIdentifyId(lastIds.second);
+        }
+        writeLastEventTime();
+
+        removeOverflowEvents();
+        return writes.size();
+    }
+
+    // Whether the eviction policy drops this event rather than making room for it, because its
+    // table already holds eventMaxCount events, counting the ones waiting in the write buffer.
+    // Only looks at the counts for event types the policy drops. Critical events never are,
+    // apart from identifys: they have their own queue, so there is nothing of lower priority
+    // to evict in their place.
+    private boolean dropOnOverflow(String eventType, String table, int priority) {
+        boolean identify = table.equals(DatabaseHelper.IDENTIFY_TABLE_NAME);
+        if ((priority == EventPriority.CRITICAL && !identify)
+                || !eventEvictionPolicy.dropsNewEvent(eventType)) {
+            return false;
+        }
+        long count = identify ?
+                getEventStore().getIdentifyCount() : getEventStore().getEventCount();
+        synchronized (pendingEventWrites) {
+            for (Pair<String, String> write : pendingEventWrites) {
+                if (write.first.equals(table)) {
+                    count++;
+                }
+            }
+        }
+        if (count < eventMaxCount && !isOverByteBudget()) {
+            return false;
+        }
+        logger.w(TAG, String.format("Event queue is full, dropping %s event", eventType));
+        return true;
+    }
+
+    // drops the oldest events and identifys once the tables grow past eventMaxCount, or the
+    // events of a priority past its own max count, in multiples of the remove batch size so
+    // that eviction does not run on every insert
+    private void removeOverflowEvents() {
+        long numEventsToRemove = Math.min(
                 Math.max(1, eventMaxCount/10),
                 Constants.EVENT_REMOVE_BATCH_SIZE
         );
-        if (dbHelper.getEventCount() > eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(numEventsToRemove));
+        for (int priority = 0; priority < EventPriority.COUNT; priority++) {
+            int maxCount = priorityMaxCounts[priority];
+            if (maxCount < 0) {
+                continue;
+            }
+            long excess = getEventStore().getEventCount(priority) - maxCount;
+            if (excess > 0) {
+                getEventStore().removeOldestEvents(
+                        roundUp(excess, Math.min(Math.max(1, maxCount/10), numEventsToRemove)),
+                        priority
+                );
+            }
+        }
+        long excessEvents = getEventStore().getEventCount() - eventMaxCount;
+        if (excessEvents > 0) {
+            removeLowestPriorityEvents(roundUp(excessEvents, numEventsToRemove));
+        }
+        long excessIdentifys = getEventStore().getIdentifyCount() - eventMaxCount;
+        if (excessIdentifys > 0) {
+            getEventStore().removeOldestIdentifys(roundUp(excessIdentifys, numEventsToRemove));
+        }
+        if (eventMaxBytes >= 0) {
+            removeOverBudgetEvents(numEventsToRemove);
+        }
+    }
+
+    private boolean isOverByteBudget() {
+        return eventMaxBytes >= 0 && getEventStore().getEventBytes()
+                + getEventStore().getIdentifyBytes() >= eventMaxBytes;
+    }
+
+    // Drops the oldest events, lowest priority first, and identifys once no events are left,
+    // until the stored bytes are back under eventMaxBytes. The number of rows to remove is
+    // estimated from the average row size and rounded up to the remove batch size.
+    private void removeOverBudgetEvents(long numEventsToRemove) {
+        EventStore eventStore = getEventStore();
+        long excessBytes = eventStore.getEventBytes() + eventStore.getIdentifyBytes() - eventMaxBytes;
+        while (excessBytes > 0) {
+            boolean identifys = eventStore.getEventCount() == 0;
+            long count = identifys ? eventStore.getIdentifyCount() : eventStore.getEventCount();
+            if (count == 0) {
+                break;
+            }
+            long bytes = identifys ? eventStore.getIdentifyBytes() : eventStore.getEventBytes();
+            long averageBytes = Math.max(1, bytes / count);
+            long n = roundUp((excessBytes + averageBytes - 1) / averageBytes, numEventsToRemove);
+            long removed = identifys ?
+                    eventStore.removeOldestIdentifys(n) : removeLowestPriorityEvents(n);
+            if (removed == 0) {
+                break;
+            }
+            excessBytes = eventStore.getEventBytes() + eventStore.getIdentifyBytes() - eventMaxBytes;
         }
-        if (dbHelper.getIdentifyCount() > eventMaxCount) {
-            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(numEventsToRemove));
+    }
+
+    // removes the n oldest events of the lowest priorities, with a plain range delete when all
+    // events are normal, returns the number of events removed
+    private long removeLowestPriorityEvents(long n) {
+        EventStore eventStore = getEventStore();
+        if (eventStore.getEventCount(EventPriority.BULK) == 0
+                && eventStore.getEventCount(EventPriority.CRITICAL) == 0) {
+            return eventStore.removeOldestEvents(n);
+        }
+        long removed = 0;
+        for (int priority = EventPriority.BULK; priority >= EventPriority.CRITICAL && removed < n; priority--) {
+            if (eventStore.getEventCount(priority) > 0) {
+                removed += eventStore.removeOldestEvents(n - removed, priority);
+            }
         }
+        return removed;
+    }
+
+    private static long roundUp(long value, long multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
 
-        long totalEventCount = dbHelper.getTotalEventCount(); // counts may have changed, refetch
-        if ((totalEventCount % eventUploadThreshold) == 0 &&
-                totalEventCount >= eventUploadThreshold) {
+    // uploads if adding the last numAdded events crossed a multiple of the upload threshold
+    private void updateServerIfThresholdReached(long numAdded) {
+        long totalEventCount = getEventStore().getTotalEventCount(); // counts may have changed, refetch
+        if (totalEventCount >= eventUploadThreshold &&
+                totalEventCount / eventUploadThreshold >
+                        (totalEventCount - numAdded) / eventUploadThreshold) {
             updateServer();
         } else {
             updateServerLater(eventUploadPeriodMillis);
         }
-
-        return (eventType.equals(Constants.IDENTIFY_EVENT)
-        ) ? lastIdentifyId : lastEventId;
     }
 
     // fetches key from dbHelper longValueStore
     // if key does not exist, return defaultValue instead
+    EventStore getEventStore() {
+        EventStore eventStore = this.eventStore;
+        return eventStore != null ? eventStore : dbHelper;
+    }
+
     private long getLongvalue(String key, long defaultValue) {
-        Long value = dbHelper.getLongValue(key);
+        Long value = getEventStore().getLongValue(key);
         return value == null ? defaultValue : value;
     }
 
@@ -996,7 +1790,22 @@ public class RakamClient {
      */
     void setLastEventTime(long timestamp) {
         lastEventTime = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        if (eventWriteBufferSize > 1) {
+            // written along with the buffered events, see writePendingEvents
+            lastEventTimeChanged = true;
+            return;
+        }
+        lastEventTimeChanged = false;
+        getEventStore().insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+    }
+
+    // persists the last event time, if it changed while buffering events
+    private void writeLastEventTime() {
+        if (lastEventTimeChanged) {
+            // cleared first, so that a change made meanwhile is written by the next call
+            lastEventTimeChanged = false;
+            getEventStore().insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, lastEventTime);
+        }
     }
 
     /**
@@ -1006,7 +1815,7 @@ public class RakamClient {
      */
     void setLastEventId(long eventId) {
         lastEventId = eventId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, eventId);
+        getEventStore().insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, eventId);
     }
 
     /**
@@ -1016,7 +1825,7 @@ public class RakamClient {
      */
     void setLastIdentifyId(long identifyId) {
         lastIdentifyId = identifyId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, identifyId);
+        getEventStore().insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, identifyId);
     }
 
     /**
@@ -1035,7 +1844,7 @@ public class RakamClient {
      */
     void setPreviousSessionId(long timestamp) {
         previousSessionId = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, timestamp);
+        getEventStore().insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, timestamp);
     }
 
     /**
@@ -1141,16 +1950,18 @@ public class RakamClient {
                 }
                 refreshSessionTime(timestamp);
                 inForeground = false;
+                flushAggregates();
+                writePendingEvents();
                 if (flushEventsOnClose) {
                     updateServer();
                 }
 
                 // re-persist metadata into database for good measure
-                dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
-                dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
-                dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
-                dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, sessionId);
-                dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, lastEventTime);
+                getEventStore().insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
+                getEventStore().insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                getEventStore().insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
+                getEventStore().insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, sessionId);
+                getEventStore().insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, lastEventTime);
             }
         });
     }
@@ -1263,7 +2074,7 @@ public class RakamClient {
      * Super Properties</a>
      */
     public void clearSuperProperties() {
-        dbHelper.insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
+        getEventStore().insertOrReplaceKeyValue(SUPER_PROPERTIES_KEY, null);
         superProperties = null;
     }
 
@@ -1423,7 +2234,7 @@ public class RakamClient {
                 }
 
                 client.userId = userId;
-                dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
+                getEventStore().insertOrReplaceKeyValue(USER_ID_KEY, userId);
 
                 // start new session
                 if (startNewSession) {
@@ -1543,6 +2354,7 @@ public class RakamClient {
      * Internal method to upload unsent events.
      */
     protected void updateServer() {
+        flushAggregates();
         updateServer(false);
         Diagnostics.getLogger().flushEvents();
     }
@@ -1554,84 +2366,110 @@ public class RakamClient {
      * @param limit the limit
      */
     protected void updateServer(boolean limit) {
+        // buffered events must be in the database before picking the batch
+        writePendingEvents();
+
         if (optOut || offline) {
             return;
         }
 
+        // the network is down, uploadScheduler retries on its own
+        if (uploadScheduler.isBackingOff()) {
+            return;
+        }
+
         // if returning out of this block, always be sure to set uploadingCurrently to false!!
         if (!uploadingCurrently.getAndSet(true)) {
-            long totalEventCount = dbHelper.getTotalEventCount();
-            long batchSize = Math.min(
-                    limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
-                    totalEventCount
-            );
-
-            if (batchSize <= 0) {
+            if (fillUploadWindow(limit) == 0) {
                 uploadingCurrently.set(false);
-                return;
             }
+        }
+    }
 
-            try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-                List<JSONObject> identifys = dbHelper.getIdentifys(lastIdentifyId, batchSize);
-
-                final Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(events, identifys, batchSize);
-                final JSONArray mergedEvents = merged.second;
-                if (mergedEvents.length() == 0) {
-                    uploadingCurrently.set(false);
-                    return;
-                }
-                final long maxEventId = merged.first.first;
-                final long maxIdentifyId = merged.first.second;
+    /**
+     * Internal method to dispatch upload batches until the upload window is full or all unsent
+     * events are in flight. <b>Note: </b> always call this on logThread
+     *
+     * @param limit whether to use the backoff upload batch size
+     * @return the number of batches dispatched
+     */
+    private int fillUploadWindow(boolean limit) {
+        int dispatched = 0;
+        while (uploadWindow.canDispatch() && dispatchUploadBatch(limit)) {
+            dispatched++;
+        }
+        return dispatched;
+    }
 
-                final String body;
-                try {
-                    body = new JSONObject().put("api", getApi()).put("events", merged.second).toString();
-                } catch (JSONException e) {
-                    uploadingCurrently.set(false);
-                    logger.e(TAG, e.toString());
-                    return;
-                }
+    private boolean dispatchUploadBatch(boolean limit) {
+        long batchSize = Math.min(
+                limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
+                getEventStore().getTotalEventCount() - uploadWindow.getEventCount()
+        );
 
-                httpThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        makeEventUploadPostRequest(httpClient, body, maxEventId, maxIdentifyId);
-                    }
-                });
-            } catch (JSONException e) {
-                uploadingCurrently.set(false);
-                logger.e(TAG, e.toString());
-                Diagnostics.getLogger().logError("Failed to update server", e);
+        if (batchSize <= 0) {
+            return false;
+        }
 
-                // handle CursorWindowAllocationException when fetching events, defer upload
-            } catch (CursorWindowAllocationException e) {
-                uploadingCurrently.set(false);
-                logger.e(TAG, String.format(
-                        "Caught Cursor window exception during event upload, deferring upload: %s",
-                        e.getMessage()
-                ));
-                Diagnostics.getLogger().logError("Failed to update server", e);
+        try {
+            List<Pair<Long, String>> events = getEventStore().getRawEvents(
+                    uploadWindow.getDispatchedEventId(), lastEventId, batchSize);
+            List<Pair<Long, String>> identifys = getEventStore().getRawIdentifys(
+                    uploadWindow.getDispatchedIdentifyId(), lastIdentifyId, batchSize);
+
+            final Pair<Pair<Long, Long>, List<String>> merged = mergeEventsAndIdentifys(
+                    events, identifys, batchSize, uploadBatchSizer.getBatchBytes());
+            // the window counts rows, however many of them get merged
+            int rows = merged.second.size();
+            if (rows == 0) {
+                return false;
             }
+            final List<String> mergedEvents = coalesceIdentifys ?
+                    IdentifyCoalescer.coalesce(merged.second) : merged.second;
+
+            final EventUploadRequestBody body = new EventUploadRequestBody(getApi().toString(), mergedEvents);
+            final UploadWindow.Batch batch = uploadWindow.dispatch(
+                    merged.first.first, merged.first.second, rows, body.contentLength());
+
+            httpThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    makeEventUploadPostRequest(httpClient, body, batch);
+                }
+            });
+            return true;
+        } catch (JSONException e) {
+            logger.e(TAG, e.toString());
+            Diagnostics.getLogger().logError("Failed to update server", e);
+
+            // handle CursorWindowAllocationException when fetching events, defer upload
+        } catch (CursorWindowAllocationException e) {
+            logger.e(TAG, String.format(
+                    "Caught Cursor window exception during event upload, deferring upload: %s",
+                    e.getMessage()
+            ));
+            Diagnostics.getLogger().logError("Failed to update server", e);
         }
+        return false;
     }
 
     /**
-     * Internal method to merge unsent events and identifies into a single array by sequence number.
+     * Internal method to merge unsent events and identifies into a single list by row id.
      *
-     * @param events    the events
-     * @param identifys the identifys
+     * @param events    the events as (row id, serialized event) pairs
+     * @param identifys the identifys as (row id, serialized identify) pairs
      * @param numEvents the num events
-     * @return the merged array, max event id, and max identify id
-     * @throws JSONException the json exception
+     * @param maxBytes  the max total size of the merged events, at least one event is merged
+     * @return the merged list, max event id, and max identify id
      */
-    protected Pair<Pair<Long, Long>, JSONArray> mergeEventsAndIdentifys(List<JSONObject> events,
-                                                                        List<JSONObject> identifys, long numEvents) throws JSONException {
-        JSONArray merged = new JSONArray();
+    protected Pair<Pair<Long, Long>, List<String>> mergeEventsAndIdentifys(List<Pair<Long, String>> events,
+                                                                           List<Pair<Long, String>> identifys, long numEvents, long maxBytes) {
+        List<String> merged = new ArrayList<String>();
+        long mergedBytes = 0;
         long maxEventId = -1;
         long maxIdentifyId = -1;
 
-        while (merged.length() < numEvents) {
+        while (merged.size() < numEvents) {
             boolean noEvents = events.isEmpty();
             boolean noIdentifys = identifys.isEmpty();
 
@@ -1641,40 +2479,35 @@ public class RakamClient {
             if (noEvents && noIdentifys) {
                 logger.w(TAG, String.format(
                         "mergeEventsAndIdentifys: number of events and identifys " +
-                                "less than expected by %d", numEvents - merged.length())
+                                "less than expected by %d", numEvents - merged.size())
                 );
                 break;
+            }
 
-                // case 1: no identifys, grab from events
-            } else if (noIdentifys) {
-                JSONObject event = events.remove(0);
-                maxEventId = event.getLong("event_id");
-                merged.put(event);
+            // case 1: no identifys, grab from events
+            // case 2: no events, grab from identifys
+            // case 3: need to compare row ids
+            boolean nextIsEvent = noIdentifys ||
+                    (!noEvents && events.get(0).first < identifys.get(0).first);
+            List<Pair<Long, String>> source = nextIsEvent ? events : identifys;
 
-                // case 2: no events, grab from identifys
-            } else if (noEvents) {
-                JSONObject identify = identifys.remove(0);
-                maxIdentifyId = identify.getLong("event_id");
-                merged.put(identify);
+            // one byte for the separating comma
+            long size = Utf8.size(source.get(0).second) + 1;
+            if (!merged.isEmpty() && mergedBytes + size > maxBytes) {
+                break;
+            }
 
-                // case 3: need to compare sequence numbers
+            Pair<Long, String> next = source.remove(0);
+            if (nextIsEvent) {
+                maxEventId = next.first;
             } else {
-                // events logged before v2.1.0 won't have a sequence number, put those first
-                if (!events.get(0).has("event_id") ||
-                        events.get(0).getLong("event_id") <
-                                identifys.get(0).getLong("event_id")) {
-                    JSONObject event = events.remove(0);
-                    maxEventId = event.getLong("event_id");
-                    merged.put(event);
-                } else {
-                    JSONObject identify = identifys.remove(0);
-                    maxIdentifyId = identify.getLong("event_id");
-                    merged.put(identify);
-                }
+                maxIdentifyId = next.first;
             }
+            merged.add(next.second);
+            mergedBytes += size;
         }
 
-        return new Pair<Pair<Long, Long>, JSONArray>(new Pair<Long, Long>(maxEventId, maxIdentifyId), merged);
+        return new Pair<Pair<Long, Long>, List<String>>(new Pair<Long, Long>(maxEventId, maxIdentifyId), merged);
     }
 
     private JSONObject getApi()
@@ -1690,98 +2523,97 @@ public class RakamClient {
     /**
      * Internal method to generate the event upload post request.
      *
-     * @param client        the client
-     * @param body        request body
-     * @param maxEventId    the max event id
-     * @param maxIdentifyId the max identify id
+     * @param client the client
+     * @param body   the request body, written to the connection as it is sent
+     * @param batch  the upload window batch covered by the request
      */
-    protected void makeEventUploadPostRequest(OkHttpClient client, String body, final long maxEventId, final long maxIdentifyId) {
+    protected void makeEventUploadPostRequest(OkHttpClient client, RequestBody body, final UploadWindow.Batch batch) {
+        final boolean compressed = compressUploads;
         Request request;
         try {
-            request = new Request.Builder()
-                    .url(apiUrl + EVENT_BATCH_ENDPOINT)
-                    .post(RequestBody.create(JSON, body))
-                    .build();
+            Request.Builder builder = new Request.Builder()
+                    .url(apiUrl + EVENT_BATCH_ENDPOINT);
+            if (compressed) {
+                builder.header("Content-Encoding", "gzip").post(new GzipRequestBody(body));
+            } else {
+                builder.post(body);
+            }
+            request = builder.build();
         } catch (IllegalArgumentException e) {
             logger.e(TAG, e.toString());
-            uploadingCurrently.set(false);
             Diagnostics.getLogger().logError("Failed to build upload request", e);
+            onUploadFailed(batch, UPLOAD_FAILED);
             return;
         }
 
-        boolean uploadSuccess = false;
+        if (uploadWindow.getCapacity() > 1) {
+            // let OkHttp run the batches of the window concurrently,
+            // responses are still handled one at a time on the httpThread
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, final IOException e) {
+                    httpThread.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!(e instanceof java.net.ConnectException)
+                                    && !(e instanceof java.net.UnknownHostException)) {
+                                logger.e(TAG, e.toString());
+                            }
+                            lastError = e;
+                            Diagnostics.getLogger().logError("Failed to post upload request", e);
+                            onUploadFailed(batch, UPLOAD_NETWORK_ERROR);
+                        }
+                    });
+                }
 
-        try {
-            Response response = client.newCall(request).execute();
-            String stringResponse = response.body().string();
-            if (stringResponse.equals("1")) {
-                uploadSuccess = true;
-                logThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
-                        uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
-                            logThread.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    updateServer(backoffUpload);
-                                }
-                            });
-                        } else {
-                            backoffUpload = false;
-                            backoffUploadBatchSize = eventUploadMaxBatchSize;
+                @Override
+                public void onResponse(Call call, Response response) throws IOException {
+                    final int responseCode = response.code();
+                    final long latencyMillis = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+                    final String stringResponse = response.body().string();
+                    httpThread.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            int result = UPLOAD_FAILED;
+                            try {
+                                result = handleUploadResponse(responseCode, stringResponse, latencyMillis, compressed, batch);
+                            } catch (Exception e) {
+                                // Just log any other exception so things don't crash on upload
+                                logger.e(TAG, "Exception:", e);
+                                lastError = e;
+                                Diagnostics.getLogger().logError("Failed to post upload request", e);
+                            }
+                            if (result != UPLOAD_SUCCESS) {
+                                onUploadFailed(batch, result);
+                            }
                         }
-                    }
-                });
-            } else if (response.code() == 403) {
-                logger.e(TAG, "Invalid API key, make sure your API key is correct in initialize()");
-            } else if (stringResponse.equals("bad_checksum")) {
-                logger.w(TAG,
-                        "Bad checksum, post request was mangled in transit, will attempt to reupload later");
-            } else if (stringResponse.equals("request_db_write_failed")) {
-                logger.w(TAG,
-                        "Couldn't write to request database on server, will attempt to reupload later");
-            } else if (response.code() == 413 || response.code() == 400) {
-
-                // If blocked by one massive event, drop it
-                if (backoffUpload && backoffUploadBatchSize == 1) {
-                    if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                    if (maxIdentifyId >= 0) dbHelper.removeIdentify(maxIdentifyId);
-                    // maybe we want to reset backoffUploadBatchSize after dropping massive event
+                    });
                 }
+            });
+            return;
+        }
 
-                // Server complained about length of request, backoff and try again
-                backoffUpload = true;
-                int numEvents = Math.min((int) dbHelper.getEventCount(), backoffUploadBatchSize);
-                backoffUploadBatchSize = (int) Math.ceil(numEvents / 2.0);
-                logger.w(TAG, String.format("Request too large or invalid: %s, will decrease size and attempt to reupload", response.code()));
-                logThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        uploadingCurrently.set(false);
-                        updateServer(true);
-                    }
-                });
-            } else if (response.code() == 500) {
-                logger.w(TAG,
-                        "A server error occurred, will attempt to reupload later");
-            } else {
-                logger.w(TAG, "Upload failed, " + stringResponse + ", will attempt to reupload later");
-            }
+        int result = UPLOAD_FAILED;
+
+        try {
+            Response response = client.newCall(request).execute();
+            long latencyMillis = response.receivedResponseAtMillis() - response.sentRequestAtMillis();
+            result = handleUploadResponse(response.code(), response.body().string(), latencyMillis, compressed, batch);
         } catch (java.net.ConnectException e) {
             // logger.w(TAG,
             // "No internet connection found, unable to upload events");
+            result = UPLOAD_NETWORK_ERROR;
             lastError = e;
             Diagnostics.getLogger().logError("Failed to post upload request", e);
         } catch (java.net.UnknownHostException e) {
             // logger.w(TAG,
             // "No internet connection found, unable to upload events");
+            result = UPLOAD_NETWORK_ERROR;
             lastError = e;
             Diagnostics.getLogger().logError("Failed to post upload request", e);
         } catch (IOException e) {
             logger.e(TAG, e.toString());
+            result = UPLOAD_NETWORK_ERROR;
             lastError = e;
             Diagnostics.getLogger().logError("Failed to post upload request", e);
         } catch (AssertionError e) {
@@ -1796,10 +2628,168 @@ public class RakamClient {
             Diagnostics.getLogger().logError("Failed to post upload request", e);
         }
 
-        if (!uploadSuccess) {
-            uploadingCurrently.set(false);
+        if (result != UPLOAD_SUCCESS) {
+            onUploadFailed(batch, result);
+        }
+
+    }
+
+    /**
+     * Internal method to act on the server response to an upload batch. <b>Note: </b> always
+     * call this on httpThread
+     *
+     * @return UPLOAD_SUCCESS, UPLOAD_FAILED, UPLOAD_RETRY if the batch should be resent
+     * right away, or UPLOAD_NETWORK_ERROR if it should be resent after a backoff
+     */
+    private int handleUploadResponse(int responseCode, String stringResponse, long latencyMillis,
+                                     boolean compressed, final UploadWindow.Batch batch) {
+        if (stringResponse.equals("1")) {
+            uploadScheduler.onSuccess();
+            if (uploadBatchSizer.onSuccess(batch.bytes, latencyMillis)) {
+                saveUploadBatchBytes();
+            }
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    onUploadAcknowledged(batch);
+                }
+            });
+            return UPLOAD_SUCCESS;
+        } else if (responseCode == 403) {
+            logger.e(TAG, "Invalid API key, make sure your API key is correct in initialize()");
+        } else if (stringResponse.equals("bad_checksum")) {
+            logger.w(TAG,
+                    "Bad checksum, post request was mangled in transit, will attempt to reupload later");
+        } else if (stringResponse.equals("request_db_write_failed")) {
+            logger.w(TAG,
+                    "Couldn't write to request database on server, will attempt to reupload later");
+        } else if (compressed && (responseCode == 415
+                || (responseCode == 400 && rejectsContentEncoding(stringResponse)))) {
+            // Server does not accept compressed requests, resend the batch uncompressed
+            compressUploads = false;
+            logger.w(TAG, String.format("Compressed upload rejected: %s, will reupload uncompressed", responseCode));
+            return UPLOAD_RETRY;
+        } else if (responseCode == 413 || responseCode == 400) {
+
+            // If blocked by one massive event, drop it
+            if (backoffUpload && backoffUploadBatchSize == 1) {
+                if (batch.maxEventId >= 0) getEventStore().removeEvent(batch.maxEventId);
+                if (batch.maxIdentifyId >= 0) getEventStore().removeIdentify(batch.maxIdentifyId);
+                // maybe we want to reset backoffUploadBatchSize after dropping massive event
+            }
+
+            // Server complained about length of request, backoff and try again
+            if (uploadBatchSizer.onTooLarge(batch.bytes)) {
+                saveUploadBatchBytes();
+            }
+            backoffUpload = true;
+            int numEvents = Math.min((int) getEventStore().getEventCount(), backoffUploadBatchSize);
+            backoffUploadBatchSize = (int) Math.ceil(numEvents / 2.0);
+            logger.w(TAG, String.format("Request too large or invalid: %s, will decrease size and attempt to reupload", responseCode));
+            return UPLOAD_RETRY;
+        } else if (responseCode == 500) {
+            logger.w(TAG,
+                    "A server error occurred, will attempt to reupload later");
+            return UPLOAD_NETWORK_ERROR;
+        } else {
+            logger.w(TAG, "Upload failed, " + stringResponse + ", will attempt to reupload later");
+        }
+        return UPLOAD_FAILED;
+    }
+
+    // a plain 400 means the batch is too large, only give up on compression when the
+    // server says it is the encoding it rejects
+    private static boolean rejectsContentEncoding(String response) {
+        String lower = response.toLowerCase(Locale.US);
+        return lower.contains("encoding") || lower.contains("gzip");
+    }
+
+    private void saveUploadBatchBytes() {
+        getEventStore().insertOrReplaceKeyLongValue(UPLOAD_BATCH_BYTES_KEY, uploadBatchSizer.getBatchBytes());
+    }
+
+    /**
+     * Internal method to remove an acknowledged batch, along with any other batches it
+     * completes a contiguous prefix with. <b>Note: </b> always call this on logThread
+     */
+    void onUploadAcknowledged(UploadWindow.Batch batch) {
+        Pair<Long, Long> uploaded = uploadWindow.acknowledge(batch);
+        if (uploaded.first >= 0) getEventStore().removeEvents(uploaded.first);
+        if (uploaded.second >= 0) getEventStore().removeIdentifys(uploaded.second);
+
+        if (!releaseUploadWindow()) {
+            // other batches are still in flight, keep the window full while the backlog lasts
+            if (getEventStore().getTotalEventCount() - uploadWindow.getEventCount() > eventUploadThreshold) {
+                fillUploadWindow(backoffUpload);
+            }
+            return;
+        }
+
+        uploadingCurrently.set(false);
+        if (uploadRetryPending || getEventStore().getTotalEventCount() > eventUploadThreshold) {
+            retryUpload();
+        } else {
+            backoffUpload = false;
+            backoffUploadBatchSize = eventUploadMaxBatchSize;
         }
+    }
+
+    /**
+     * Internal method to handle a batch that was not acknowledged. Hands the batch over to
+     * the logThread, like acknowledged batches, so that only the logThread changes the upload
+     * window and the event store. Can be called from any thread.
+     */
+    void onUploadFailed(final UploadWindow.Batch batch, final int result) {
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                if (result == UPLOAD_NETWORK_ERROR) {
+                    long delay = uploadScheduler.onNetworkFailure();
+                    logger.w(TAG, String.format("Upload failed on the network, will retry in %d ms", delay));
+                } else if (result == UPLOAD_RETRY) {
+                    uploadRetryPending = true;
+                }
+
+                uploadWindow.fail(batch);
+                if (!releaseUploadWindow()) {
+                    // the retry waits for the batches still in flight
+                    return;
+                }
+
+                uploadingCurrently.set(false);
+                if (uploadRetryPending) {
+                    retryUpload();
+                }
+            }
+        });
+    }
+
+    private void retryUpload() {
+        uploadRetryPending = false;
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                updateServer(backoffUpload);
+            }
+        });
+    }
 
+    /**
+     * Resets the upload window once no batch is in flight, removing the batches that were
+     * acknowledged behind a failed one.
+     *
+     * @return false while batches are still in flight
+     */
+    private boolean releaseUploadWindow() {
+        List<UploadWindow.Batch> stranded = uploadWindow.release();
+        if (stranded == null) {
+            return false;
+        }
+        for (UploadWindow.Batch batch : stranded) {
+            if (batch.maxEventId >= 0) getEventStore().removeEventRange(batch.afterEventId, batch.maxEventId);
+            if (batch.maxIdentifyId >= 0) getEventStore().removeIdentifyRange(batch.afterIdentifyId, batch.maxIdentifyId);
+        }
+        return true;
     }
 
     /**
@@ -1829,7 +2819,7 @@ public class RakamClient {
         Set<String> invalidIds = getInvalidDeviceIds();
 
         // see if device id already stored in db
-        String deviceId = dbHelper.getValue(DEVICE_ID_KEY);
+        String deviceId = getEventStore().getValue(DEVICE_ID_KEY);
         String sharedPrefDeviceId = Utils.getStringFromSharedPreferences(context, instanceName, DEVICE_ID_KEY);
         if (!(Utils.isEmptyString(deviceId) || invalidIds.contains(deviceId))) {
             // compare against device id stored in backup storage and update if necessary
@@ -1865,7 +2855,7 @@ public class RakamClient {
     }
 
     private void saveDeviceId(String deviceId) {
-        dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
+        getEventStore().insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
         Utils.writeStringToSharedPreferences(context, instanceName, DEVICE_ID_KEY, deviceId);
     }
 
@@ -2050,6 +3040,64 @@ public class RakamClient {
         }
     }
 
+    /**
+     * Moves the unsent events and identifys and the metadata from the database into the event
+     * store, unless that already happened. Event ids are assigned again by the event store.
+     *
+     * The events are moved first and the store is only marked as migrated at the very end, so
+     * a migration cut short by a crash runs again on the next start. The database keeps all of
+     * its events until they are all in the store, so a rerun replaces the events copied by the
+     * interrupted one. Metadata the store already has is left alone.
+     */
+    static void migrateDatabaseToEventStore(DatabaseHelper dbHelper, EventStore eventStore) {
+        if (eventStore.getLongValue(EVENT_STORE_MIGRATED_KEY) != null) {
+            return;
+        }
+
+        try {
+            List<Pair<String, String>> events = new ArrayList<Pair<String, String>>();
+            for (JSONObject event : dbHelper.getEvents(-1, -1)) {
+                event.remove("event_id");
+                events.add(new Pair<String, String>(DatabaseHelper.EVENT_TABLE_NAME, event.toString()));
+            }
+            for (JSONObject identify : dbHelper.getIdentifys(-1, -1)) {
+                identify.remove("event_id");
+                events.add(new Pair<String, String>(DatabaseHelper.IDENTIFY_TABLE_NAME, identify.toString()));
+            }
+            if (!events.isEmpty()) {
+                // left over from an interrupted migration, the database still has them all
+                eventStore.removeEvents(Long.MAX_VALUE);
+                eventStore.removeIdentifys(Long.MAX_VALUE);
+                Pair<Long, Long> lastIds = eventStore.addEventsAndIdentifys(events);
+                eventStore.insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, lastIds.first);
+                eventStore.insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, lastIds.second);
+            }
+        } catch (JSONException e) {
+            // the events stay in the database, retrying would not make them readable
+            logger.e(TAG, "Failed to move events to the event store", e);
+            Diagnostics.getLogger().logError("Failed to move events to the event store", e);
+        }
+
+        String[] keys = {DEVICE_ID_KEY, USER_ID_KEY, SUPER_PROPERTIES_KEY};
+        for (String key : keys) {
+            String value = dbHelper.getValue(key);
+            if (value != null && eventStore.getValue(key) == null) {
+                eventStore.insertOrReplaceKeyValue(key, value);
+            }
+        }
+        String[] longKeys = {OPT_OUT_KEY, PREVIOUS_SESSION_ID_KEY, LAST_EVENT_TIME_KEY, UPLOAD_BATCH_BYTES_KEY};
+        for (String key : longKeys) {
+            Long value = dbHelper.getLongValue(key);
+            if (value != null && eventStore.getLongValue(key) == null) {
+                eventStore.insertOrReplaceKeyLongValue(key, value);
+            }
+        }
+
+        dbHelper.removeEvents(Long.MAX_VALUE);
+        dbHelper.removeIdentifys(Long.MAX_VALUE);
+        eventStore.insertOrReplaceKeyLongValue(EVENT_STORE_MIGRATED_KEY, 1L);
+    }
+
     /**
      * Upgrade shared prefs to db boolean.
      *
@@ -0,0 +1,378 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records with increasing ids, stored in memory-mapped segment files.
+ * Appending writes straight into the mapped page cache and removing a record only flips the
+ * sign of its size in place, so neither needs a system call. Segment files get deleted once
+ * every record in them has been removed.
+ *
+ * Each record is laid out as:
+ *   int    record size, header included, negated once the record is removed
+ *   int    CRC32 of the id and the payload
+ *   long   id
+ *   byte[] payload
+ * The size is written last, and a zero size marks the end of a segment. On open every segment
+ * is scanned up to the first record that is cut off or fails its CRC, which is where writing
+ * continues. Mapped writes reach the disk when the OS flushes the page cache, so a power loss
+ * can lose the latest records but not corrupt older ones.
+ *
+ * Not thread safe, SegmentLogEventStore synchronizes access.
+ */
+class SegmentLog {
+
+    private static final String TAG = "io.rakam.api.SegmentLog";
+    private static final String SEGMENT_SUFFIX = ".log";
+    static final int HEADER_BYTES = 16;
+
+    private static final class Segment {
+        final File file;
+        final long firstId;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        int position = 0;
+        long[] ids = new long[64];
+        int[] offsets = new int[64];
+        int count = 0;
+        int live = 0;
+
+        Segment(File file, long firstId, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstId = firstId;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        void index(long id, int offset) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            ids[count] = id;
+            offsets[count] = offset;
+            count++;
+        }
+
+        // index of the first record with an id greater than afterId
+        int indexAfter(long afterId) {
+            int i = Arrays.binarySearch(ids, 0, count, afterId);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+    }
+
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    private final File directory;
+    private final int segmentBytes;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] idBytes = new byte[8];
+    private long nextId = 1;
+    private int live = 0;
+    private long liveBytes = 0;
+
+    SegmentLog(File directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Pair<Long, File>> files = new ArrayList<Pair<Long, File>>();
+        File[] listed = directory.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    long firstId = Long.parseLong(
+                            name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    files.add(new Pair<Long, File>(firstId, file));
+                } catch (NumberFormatException e) {
+                    logger.w(TAG, "Ignoring unexpected file " + file);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<Pair<Long, File>>() {
+            @Override
+            public int compare(Pair<Long, File> a, Pair<Long, File> b) {
+                return a.first < b.first ? -1 : (a.first > b.first ? 1 : 0);
+            }
+        });
+
+        for (Pair<Long, File> file : files) {
+            if (file.first < nextId || file.second.length() < HEADER_BYTES) {
+                // overlaps the previous segment, or was cut off while being created
+                file.second.delete();
+                continue;
+            }
+            Segment segment = new Segment(
+                    file.second, file.first, map(file.second, (int) file.second.length()));
+            scan(segment);
+            segments.add(segment);
+            nextId = segment.count > 0 ? segment.ids[segment.count - 1] + 1 : segment.firstId;
+            live += segment.live;
+        }
+
+        // the last segment keeps the next id, even when all of its records have been removed
+        for (int i = segments.size() - 2; i >= 0; i--) {
+            if (segments.get(i).live == 0) {
+                deleteSegment(segments.remove(i));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(createSegment(nextId, segmentBytes));
+        }
+    }
+
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        long minId = segment.firstId;
+        while (offset + HEADER_BYTES <= segment.capacity) {
+            int size = buffer.getInt(offset);
+            if (size == 0) {
+                break;
+            }
+            int recordBytes = Math.abs(size);
+            if (size == Integer.MIN_VALUE || recordBytes < HEADER_BYTES
+                    || recordBytes > segment.capacity - offset) {
+                break;
+            }
+            long id = buffer.getLong(offset + 8);
+            if (id < minId || buffer.getInt(offset + 4) != checksum(buffer, offset, recordBytes)) {
+                break;
+            }
+            segment.index(id, offset);
+            if (size > 0) {
+                segment.live++;
+                liveBytes += recordBytes - HEADER_BYTES;
+            }
+            minId = id + 1;
+            offset += recordBytes;
+        }
+        segment.position = offset;
+
+        // clear whatever follows the last valid record, like a record cut off by a crash, so
+        // that it cannot be mistaken for records once appends continue from here
+        for (int i = offset; i < segment.capacity; i++) {
+            if (buffer.get(i) != 0) {
+                logger.w(TAG, String.format("Truncating %s at %d", segment.file, offset));
+                for (int j = i; j < segment.capacity; j++) {
+                    buffer.put(j, (byte) 0);
+                }
+                break;
+            }
+        }
+    }
+
+    private int checksum(MappedByteBuffer buffer, int offset, int recordBytes) {
+        byte[] record = new byte[recordBytes - 8];
+        buffer.position(offset + 8);
+        buffer.get(record);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private Segment createSegment(long firstId, int capacity) throws IOException {
+        File file = new File(directory, String.format(Locale.US, "%020d%s", firstId, SEGMENT_SUFFIX));
+        return new Segment(file, firstId, map(file, capacity));
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (!segment.file.delete()) {
+            logger.w(TAG, "Failed to delete " + segment.file);
+        }
+    }
+
+    /**
+     * @return the id of the appended record
+     */
+    long append(byte[] payload) throws IOException {
+        int recordBytes = HEADER_BYTES + payload.length;
+        Segment segment = segments.getLast();
+        if (segment.position + recordBytes > segment.capacity) {
+            Segment next = createSegment(nextId, Math.max(segmentBytes, recordBytes));
+            if (segment.live == 0) {
+                segments.removeLast();
+                deleteSegment(segment);
+            }
+            segments.add(next);
+            segment = next;
+        }
+
+        long id = nextId++;
+        for (int i = 0; i < 8; i++) {
+            idBytes[i] = (byte) (id >>> (56 - 8 * i));
+        }
+        crc.reset();
+        crc.update(idBytes);
+        crc.update(payload);
+
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = segment.position;
+        buffer.putLong(offset + 8, id);
+        buffer.position(offset + HEADER_BYTES);
+        buffer.put(payload);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, recordBytes);  // last, marks the record as complete
+
+        segment.position += recordBytes;
+        segment.index(id, offset);
+        segment.live++;
+        live++;
+        liveBytes += payload.length;
+        return id;
+    }
+
+    /**
+     * @return the live records with ids after afterId and up to upToId, at most limit of them.
+     * Use -1 for no upToId or no limit.
+     */
+    List<Pair<Long, byte[]>> read(long afterId, long upToId, long limit) {
+        List<Pair<Long, byte[]>> records = new ArrayList<Pair<Long, byte[]>>();
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.ids[segment.count - 1] <= afterId) {
+                continue;
+            }
+            for (int i = segment.indexAfter(afterId); i < segment.count; i++) {
+                if ((upToId >= 0 && segment.ids[i] > upToId) || (limit >= 0 && records.size() >= limit)) {
+                    return records;
+                }
+                int size = segment.buffer.getInt(segment.offsets[i]);
+                if (size <= 0) {
+                    continue;
+                }
+                byte[] payload = new byte[size - HEADER_BYTES];
+                segment.buffer.position(segment.offsets[i] + HEADER_BYTES);
+                segment.buffer.get(payload);
+                records.add(new Pair<Long, byte[]>(segment.ids[i], payload));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Removes the live records with ids after afterId and up to maxId.
+     *
+     * @return the number of records removed
+     */
+    int remove(long afterId, long maxId) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.ids[segment.count - 1] <= afterId) {
+                continue;
+            }
+            if (segment.ids[0] > maxId) {
+                break;
+            }
+            for (int i = segment.indexAfter(afterId); i < segment.count && segment.ids[i] <= maxId; i++) {
+                removed += removeRecord(segment, i);
+            }
+        }
+        dropDeadSegments();
+        return removed;
+    }
+
+    /**
+     * Removes the n oldest live records.
+     *
+     * @return the number of records removed
+     */
+    int removeOldest(long n) {
+        int removed = 0;
+        for (Segment segment : segments) {
+            for (int i = 0; i < segment.count && removed < n; i++) {
+                removed += removeRecord(segment, i);
+            }
+            if (removed >= n) {
+                break;
+            }
+        }
+        dropDeadSegments();
+        return removed;
+    }
+
+    private int removeRecord(Segment segment, int i) {
+        int offset = segment.offsets[i];
+        int size = segment.buffer.getInt(offset);
+        if (size <= 0) {
+            return 0;
+        }
+        segment.buffer.putInt(offset, -size);
+        segment.live--;
+        live--;
+        liveBytes -= size - HEADER_BYTES;
+        return 1;
+    }
+
+    private void dropDeadSegments() {
+        // the last segment is kept, appends continue there
+        while (segments.size() > 1 && segments.getFirst().live == 0) {
+            deleteSegment(segments.removeFirst());
+        }
+    }
+
+    /**
+     * @return the number of live records
+     */
+    int count() {
+        return live;
+    }
+
+    /**
+     * @return the payload bytes of the live records
+     */
+    long bytes() {
+        return liveBytes;
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the first id of the segment appends currently go to
+     */
+    long getActiveSegmentFirstId() {
+        return segments.getLast().firstId;
+    }
+
+    /**
+     * @return the id of the last appended record, or 0 if none
+     */
+    long getLastId() {
+        return nextId - 1;
+    }
+}
@@ -0,0 +1,355 @@
+package io.rakam.api;
+
+import android.content.Context;
+import android.util.Pair;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link EventStore} that keeps events, identifys and metadata in three {@link SegmentLog}s.
+ * The upload queue is written once and read once, in id order, so a sequential log fits it better
+ * than the B-tree inserts and deletes of the SQLite store.
+ *
+ * Metadata is a log of key/value records replayed into memory on open. Writing a key appends a
+ * new record and removes the previous one, and records left in older segments are copied forward
+ * whenever a segment fills up, so that those segments can be deleted.
+ */
+class SegmentLogEventStore implements EventStore {
+
+    static final Map<String, SegmentLogEventStore> instances = new HashMap<String, SegmentLogEventStore>();
+
+    private static final String TAG = "io.rakam.api.SegmentLogEventStore";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte STRING_VALUE = 0;
+    private static final byte LONG_VALUE = 1;
+
+    private static final RakamLog logger = RakamLog.getLogger();
+
+    private final SegmentLog events;
+    private final SegmentLog identifys;
+    private final SegmentLog metadata;
+    // key -> (record id, value), strings and longs are separate like the store and long_store tables
+    private final Map<String, Pair<Long, String>> values = new HashMap<String, Pair<Long, String>>();
+    private final Map<String, Pair<Long, Long>> longValues = new HashMap<String, Pair<Long, Long>>();
+
+    /**
+     * @return the store for the instance, or null if its files could not be opened
+     */
+    static synchronized SegmentLogEventStore getEventStore(Context context, String instance) {
+        instance = Utils.normalizeInstanceName(instance);
+        SegmentLogEventStore eventStore = instances.get(instance);
+        if (eventStore == null) {
+            try {
+                eventStore = new SegmentLogEventStore(getDirectory(context, instance));
+                instances.put(instance, eventStore);
+            } catch (IOException e) {
+                logger.e(TAG, "Failed to open event store", e);
+                Diagnostics.getLogger().logError("EventLog: Failed to open event store", e);
+            }
+        }
+        return eventStore;
+    }
+
+    static File getDirectory(Context context, String instance) {
+        String name = (Utils.isEmptyString(instance) || instance.equals(Constants.DEFAULT_INSTANCE)) ?
+                Constants.EVENT_LOG_NAME : Constants.EVENT_LOG_NAME + "_" + instance;
+        return new File(context.getApplicationContext().getFilesDir(), name);
+    }
+
+    SegmentLogEventStore(File directory) throws IOException {
+        events = new SegmentLog(new File(directory, DatabaseHelper.EVENT_TABLE_NAME),
+                Constants.EVENT_LOG_SEGMENT_BYTES);
+        identifys = new SegmentLog(new File(directory, DatabaseHelper.IDENTIFY_TABLE_NAME),
+                Constants.EVENT_LOG_SEGMENT_BYTES);
+        metadata = new SegmentLog(new File(directory, DatabaseHelper.STORE_TABLE_NAME),
+                Constants.EVENT_LOG_METADATA_SEGMENT_BYTES);
+        for (Pair<Long, byte[]> record : metadata.read(-1, -1, -1)) {
+            replay(record.first, record.second);
+        }
+    }
+
+    /**
+     * @return whether nothing has been stored yet
+     */
+    synchronized boolean isEmpty() {
+        return events.getLastId() == 0 && identifys.getLastId() == 0 && metadata.getLastId() == 0;
+    }
+
+    @Override
+    public synchronized long addEvent(String event) {
+        return append(events, event);
+    }
+
+    // segment logs are read and removed by id range only, so all events share the normal lane
+    @Override
+    public synchronized long addEvent(String event, int priority) {
+        return addEvent(event);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return append(identifys, identifyEvent);
+    }
+
+    @Override
+    public synchronized Pair<Long, Long> addEventsAndIdentifys(List<Pair<String, String>> batch) {
+        long lastEventId = -1;
+        long lastIdentifyId = -1;
+        for (Pair<String, String> event : batch) {
+            if (event.first.equals(DatabaseHelper.IDENTIFY_TABLE_NAME)) {
+                long id = append(identifys, event.second);
+                lastIdentifyId = id >= 0 ? id : lastIdentifyId;
+            } else {
+                long id = append(events, event.second);
+                lastEventId = id >= 0 ? id : lastEventId;
+            }
+        }
+        return new Pair<Long, Long>(lastEventId, lastIdentifyId);
+    }
+
+    @Override
+    public synchronized Pair<Long, Long> addEventsAndIdentifys(List<Pair<String, String>> batch,
+                                                             List<Integer> priorities) {
+        return addEventsAndIdentifys(batch);
+    }
+
+    private long append(SegmentLog log, String event) {
+        try {
+            return log.append(event == null ? EMPTY : event.getBytes(UTF_8));
+        } catch (IOException e) {
+            logger.e(TAG, "addEvent failed", e);
+            Diagnostics.getLogger().logError(String.format("EventLog: Failed to addEvent: %s", event), e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized List<Pair<Long, String>> getRawEvents(
+            long afterId, long upToId, long limit) throws JSONException {
+        return read(events, afterId, upToId, limit);
+    }
+
+    @Override
+    public synchronized List<Pair<Long, String>> getRawIdentifys(
+            long afterId, long upToId, long limit) throws JSONException {
+        return read(identifys, afterId, upToId, limit);
+    }
+
+    private List<Pair<Long, String>> read(
+            SegmentLog log, long afterId, long upToId, long limit) throws JSONException {
+        List<Pair<Long, String>> result = new LinkedList<Pair<Long, String>>();
+        for (Pair<Long, byte[]> record : log.read(afterId, upToId, limit)) {
+            if (record.second.length == 0) {
+                continue;
+            }
+            String event = new String(record.second, UTF_8);
+            result.add(new Pair<Long, String>(record.first, DatabaseHelper.withEventId(event, record.first)));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        return events.count();
+    }
+
+    @Override
+    public synchronized long getEventCount(int priority) {
+        return priority == EventPriority.NORMAL ? events.count() : 0;
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        return identifys.count();
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        return events.count() + identifys.count();
+    }
+
+    @Override
+    public synchronized long getEventBytes() {
+        return events.bytes();
+    }
+
+    @Override
+    public synchronized long getIdentifyBytes() {
+        return identifys.bytes();
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        events.remove(-1, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        identifys.remove(-1, maxId);
+    }
+
+    @Override
+    public synchronized void removeEventRange(long afterId, long maxId) {
+        events.remove(afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeIdentifyRange(long afterId, long maxId) {
+        identifys.remove(afterId, maxId);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        events.remove(id - 1, id);
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        identifys.remove(id - 1, id);
+    }
+
+    @Override
+    public synchronized long removeOldestEvents(long n) {
+        return events.removeOldest(n);
+    }
+
+    @Override
+    public synchronized long removeOldestEvents(long n, int priority) {
+        return priority == EventPriority.NORMAL ? events.removeOldest(n) : 0;
+    }
+
+    @Override
+    public synchronized long removeOldestIdentifys(long n) {
+        return identifys.removeOldest(n);
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        Pair<Long, String> value = values.get(key);
+        return value == null ? null : value.second;
+    }
+
+    @Override
+    public synchronized Long getLongValue(String key) {
+        Pair<Long, Long> value = longValues.get(key);
+        return value == null ? null : value.second;
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        return putValue(STRING_VALUE, key, value);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+        return putValue(LONG_VALUE, key, value);
+    }
+
+    private long putValue(byte type, String key, Object value) {
+        long id = writeValue(type, key, value);
+        if (metadata.getSegmentCount() > 1) {
+            compactMetadata();
+        }
+        return id;
+    }
+
+    private long writeValue(byte type, String key, Object value) {
+        Pair<Long, ?> previous = type == STRING_VALUE ? values.remove(key) : longValues.remove(key);
+        if (previous != null) {
+            metadata.remove(previous.first - 1, previous.first);
+        }
+        if (value == null) {
+            return previous == null ? 0 : 1;
+        }
+
+        long id;
+        try {
+            id = metadata.append(encode(type, key, value));
+        } catch (IOException e) {
+            logger.e(TAG, String.format("insertOrReplaceKeyValue %s failed", key), e);
+            Diagnostics.getLogger().logError(
+                    String.format("EventLog: Failed to insertOrReplaceKeyValue %s", key), e
+            );
+            return -1;
+        }
+        if (type == STRING_VALUE) {
+            values.put(key, new Pair<Long, String>(id, (String) value));
+        } else {
+            longValues.put(key, new Pair<Long, Long>(id, (Long) value));
+        }
+        return id;
+    }
+
+    // copies the values still stored in older segments to the current one, which removes the
+    // last live records from those segments
+    private void compactMetadata() {
+        long activeFirstId = metadata.getActiveSegmentFirstId();
+        for (Map.Entry<String, Pair<Long, String>> entry : new ArrayList<Map.Entry<String, Pair<Long, String>>>(values.entrySet())) {
+            if (entry.getValue().first < activeFirstId) {
+                writeValue(STRING_VALUE, entry.getKey(), entry.getValue().second);
+            }
+        }
+        for (Map.Entry<String, Pair<Long, Long>> entry : new ArrayList<Map.Entry<String, Pair<Long, Long>>>(longValues.entrySet())) {
+            if (entry.getValue().first < activeFirstId) {
+                writeValue(LONG_VALUE, entry.getKey(), entry.getValue().second);
+            }
+        }
+    }
+
+    private static byte[] encode(byte type, String key, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        writeString(out, key);
+        if (type == STRING_VALUE) {
+            writeString(out, (String) value);
+        } else {
+            out.writeLong((Long) value);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void replay(long id, byte[] record) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            byte type = in.readByte();
+            String key = readString(in);
+            if (type == STRING_VALUE) {
+                values.put(key, new Pair<Long, String>(id, readString(in)));
+            } else {
+                longValues.put(key, new Pair<Long, Long>(id, in.readLong()));
+            }
+        } catch (IOException e) {
+            logger.w(TAG, "Skipping unreadable metadata record " + id);
+        }
+    }
+
+    // DataOutputStream.writeUTF is limited to 64KB, super properties can be longer
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -20,6 +20,8 @@ public class TrackingOptions {
     public static final String TAG = "io.rakam.api.TrackingOptions";
 
     Set<String> disabledFields = new HashSet<String>();
+    // bumped on every change, so that cached device contexts can tell they are stale
+    private volatile int version = 0;
 
     public TrackingOptions disableAdid() {
         disableTrackingField(Constants.AMP_TRACKING_OPTION_ADID);
@@ -167,6 +169,11 @@ public class TrackingOptions {
 
     private void disableTrackingField(String field) {
         disabledFields.add(field);
+        version++;
+    }
+
+    int getVersion() {
+        return version;
     }
 
     protected JSONObject getApiPropertiesTrackingOptions() {
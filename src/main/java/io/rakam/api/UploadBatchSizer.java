@@ -0,0 +1,73 @@
+package io.rakam.api;
+
+/**
+ * Tunes the size of upload batches in bytes (additive increase, multiplicative decrease).
+ * Batches that upload within the target latency grow the limit by a fixed step, while
+ * rejected or slow uploads cut it down, so the limit settles at the largest payload the
+ * server accepts and the network carries in reasonable time.
+ *
+ * Accessed from both the logThread and the httpThread.
+ */
+class UploadBatchSizer {
+
+    private final long minBytes;
+    private final long maxBytes;
+    private final long stepBytes;
+    private final long targetLatencyMillis;
+    private long batchBytes;
+
+    UploadBatchSizer(long minBytes, long maxBytes, long stepBytes, long targetLatencyMillis,
+                     long batchBytes) {
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.stepBytes = stepBytes;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.batchBytes = clamp(batchBytes);
+    }
+
+    synchronized long getBatchBytes() {
+        return batchBytes;
+    }
+
+    /**
+     * Restores a limit learned in a previous session.
+     */
+    synchronized void setBatchBytes(long batchBytes) {
+        this.batchBytes = clamp(batchBytes);
+    }
+
+    /**
+     * Records a successful upload.
+     *
+     * @param sentBytes     the uncompressed size of the uploaded batch
+     * @param latencyMillis the time from sending the request to receiving the response
+     * @return whether the limit changed
+     */
+    synchronized boolean onSuccess(long sentBytes, long latencyMillis) {
+        long previous = batchBytes;
+        if (latencyMillis > targetLatencyMillis) {
+            // shrink to what the measured throughput uploads within the target latency
+            batchBytes = clamp(Math.min(batchBytes / 2, sentBytes * targetLatencyMillis / latencyMillis));
+        } else if (sentBytes * 2 >= batchBytes) {
+            // only batches close to the limit tell us the limit can grow
+            batchBytes = clamp(batchBytes + stepBytes);
+        }
+        return batchBytes != previous;
+    }
+
+    /**
+     * Records a batch rejected by the server for being too large.
+     *
+     * @param sentBytes the uncompressed size of the rejected batch
+     * @return whether the limit changed
+     */
+    synchronized boolean onTooLarge(long sentBytes) {
+        long previous = batchBytes;
+        batchBytes = clamp(Math.min(batchBytes, sentBytes) / 2);
+        return batchBytes != previous;
+    }
+
+    private long clamp(long bytes) {
+        return Math.max(minBytes, Math.min(maxBytes, bytes));
+    }
+}
@@ -0,0 +1,122 @@
+package io.rakam.api;
+
+import java.util.Random;
+
+/**
+ * Schedules upload retries after network failures. Each consecutive failure doubles the retry
+ * delay, up to a maximum, and half of every delay is randomized so that many devices losing
+ * the same network do not retry in lockstep. While a retry is pending, uploads triggered by
+ * logging events are skipped instead of hitting the network again.
+ *
+ * The retry delay runs on the thread's Handler, which does not advance while the device is
+ * asleep, so the backoff also ends once its deadline has passed in {@link #currentTimeMillis()}.
+ */
+class UploadScheduler {
+
+    private final WorkerThread thread;
+    private final Runnable upload;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random = new Random();
+
+    private int failures = 0;
+    private long nextAttemptMillis = 0;
+    private boolean connected = true;
+
+    private final Runnable retry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UploadScheduler.this) {
+                nextAttemptMillis = 0;
+            }
+            upload.run();
+        }
+    };
+
+    /**
+     * @param thread          the thread to run uploads on
+     * @param upload          the upload to retry
+     * @param baseDelayMillis the delay after the first failure
+     * @param maxDelayMillis  the max delay between retries
+     */
+    UploadScheduler(WorkerThread thread, Runnable upload, long baseDelayMillis,
+                    long maxDelayMillis) {
+        this.thread = thread;
+        this.upload = upload;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return whether uploads should wait for the scheduled retry
+     */
+    synchronized boolean isBackingOff() {
+        if (!connected) {
+            return true;
+        }
+        return failures > 0 && currentTimeMillis() < nextAttemptMillis;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the time of the next retry, or 0 if none is scheduled
+     */
+    synchronized long getNextAttemptMillis() {
+        return nextAttemptMillis;
+    }
+
+    /**
+     * Records a failed upload and schedules the retry.
+     *
+     * @return the delay until the retry
+     */
+    synchronized long onNetworkFailure() {
+        failures++;
+        long delay = getRetryDelayMillis(failures);
+        nextAttemptMillis = currentTimeMillis() + delay;
+        thread.removeCallbacks(retry);
+        if (connected) {
+            thread.postDelayed(retry, delay);
+        }
+        return delay;
+    }
+
+    synchronized void onSuccess() {
+        if (failures == 0) {
+            return;
+        }
+        failures = 0;
+        nextAttemptMillis = 0;
+        thread.removeCallbacks(retry);
+    }
+
+    /**
+     * Stops retrying while the network is down, and retries right away once it is back.
+     */
+    synchronized void onConnectivityChanged(boolean connected) {
+        this.connected = connected;
+        thread.removeCallbacks(retry);
+        if (connected) {
+            failures = 0;
+            nextAttemptMillis = 0;
+            thread.post(retry);
+        }
+    }
+
+    long getRetryDelayMillis(int failures) {
+        long delay = maxDelayMillis;
+        // past 2^20 * base the cap has long been reached, and the shift would overflow
+        if (failures <= 20) {
+            delay = Math.min(maxDelayMillis, baseDelayMillis << (failures - 1));
+        }
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * (half + 1));
+    }
+}
@@ -0,0 +1,173 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Tracks the upload batches that are in flight at the same time. Batches cover disjoint,
+ * increasing id ranges of the events and identifys tables and are acknowledged one by one;
+ * only the contiguous acknowledged prefix may be removed from the database, since a failed
+ * batch in front of it still has to be retried.
+ *
+ * After any batch fails no new batches are dispatched. Once the remaining batches complete,
+ * {@link #release()} hands back the acknowledged batches stuck behind the failure so they can
+ * be removed by range, and the dispatch position is rewound to the start of the tables.
+ *
+ * Batches are dispatched, completed and released on the logThread only; the httpThread reads
+ * the capacity.
+ */
+class UploadWindow {
+
+    private static final int IN_FLIGHT = 0;
+    private static final int ACKNOWLEDGED = 1;
+    private static final int FAILED = 2;
+
+    static final class Batch {
+        final long afterEventId;
+        final long maxEventId;
+        final long afterIdentifyId;
+        final long maxIdentifyId;
+        final int count;
+        final long bytes;
+        private int state = IN_FLIGHT;
+
+        Batch(long afterEventId, long maxEventId, long afterIdentifyId, long maxIdentifyId,
+              int count, long bytes) {
+            this.afterEventId = afterEventId;
+            this.maxEventId = maxEventId;
+            this.afterIdentifyId = afterIdentifyId;
+            this.maxIdentifyId = maxIdentifyId;
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    private final LinkedList<Batch> batches = new LinkedList<Batch>();
+    private int capacity;
+    private long dispatchedEventId = -1;
+    private long dispatchedIdentifyId = -1;
+    private int inFlight = 0;
+    private boolean failed = false;
+
+    UploadWindow(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    synchronized void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized boolean canDispatch() {
+        return !failed && batches.size() < capacity;
+    }
+
+    synchronized boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    /**
+     * @return the highest event id handed out to a batch, or -1 if none
+     */
+    synchronized long getDispatchedEventId() {
+        return dispatchedEventId;
+    }
+
+    synchronized long getDispatchedIdentifyId() {
+        return dispatchedIdentifyId;
+    }
+
+    /**
+     * @return the number of events and identifys held by the window, still in the database
+     */
+    synchronized long getEventCount() {
+        long count = 0;
+        for (Batch batch : batches) {
+            count += batch.count;
+        }
+        return count;
+    }
+
+    /**
+     * Adds a batch covering the ids after the current dispatch position, up to and including
+     * maxEventId and maxIdentifyId. Use -1 for a table the batch has no rows from.
+     */
+    synchronized Batch dispatch(long maxEventId, long maxIdentifyId, int count, long bytes) {
+        Batch batch = new Batch(
+                dispatchedEventId, maxEventId, dispatchedIdentifyId, maxIdentifyId, count, bytes
+        );
+        if (maxEventId >= 0) {
+            dispatchedEventId = maxEventId;
+        }
+        if (maxIdentifyId >= 0) {
+            dispatchedIdentifyId = maxIdentifyId;
+        }
+        batches.add(batch);
+        inFlight++;
+        return batch;
+    }
+
+    /**
+     * Marks a batch as acknowledged by the server and drops the acknowledged prefix of the
+     * window.
+     *
+     * @return the max event id and max identify id of the dropped prefix, -1 where nothing
+     * can be removed yet
+     */
+    synchronized Pair<Long, Long> acknowledge(Batch batch) {
+        complete(batch, ACKNOWLEDGED);
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        while (!batches.isEmpty() && batches.getFirst().state == ACKNOWLEDGED) {
+            Batch done = batches.removeFirst();
+            if (done.maxEventId >= 0) {
+                maxEventId = done.maxEventId;
+            }
+            if (done.maxIdentifyId >= 0) {
+                maxIdentifyId = done.maxIdentifyId;
+            }
+        }
+        return new Pair<Long, Long>(maxEventId, maxIdentifyId);
+    }
+
+    synchronized void fail(Batch batch) {
+        complete(batch, FAILED);
+        failed = true;
+    }
+
+    /**
+     * Resets the window once no batch is in flight any more.
+     *
+     * @return null while batches are still in flight, otherwise the acknowledged batches that
+     * could not be removed as part of a prefix
+     */
+    synchronized List<Batch> release() {
+        if (inFlight > 0) {
+            return null;
+        }
+        List<Batch> stranded = new ArrayList<Batch>();
+        for (Batch batch : batches) {
+            if (batch.state == ACKNOWLEDGED) {
+                stranded.add(batch);
+            }
+        }
+        batches.clear();
+        dispatchedEventId = -1;
+        dispatchedIdentifyId = -1;
+        failed = false;
+        return stranded;
+    }
+
+    private void complete(Batch batch, int state) {
+        if (batch.state == IN_FLIGHT) {
+            inFlight--;
+        }
+        batch.state = state;
+    }
+}
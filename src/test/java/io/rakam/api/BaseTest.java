@@ -98,6 +98,7 @@ public class BaseTest {
         // and https://github.com/robolectric/robolectric/issues/1622
         Rakam.instances.clear();
         DatabaseHelper.instances.clear();
+        SegmentLogEventStore.instances.clear();
 
         // Clear shared prefs for each test
         for (String instanceName : instanceNames) {
@@ -140,6 +141,7 @@ public class BaseTest {
 
         Rakam.instances.clear();
         DatabaseHelper.instances.clear();
+        SegmentLogEventStore.instances.clear();
 
         if (Diagnostics.instance != null) {
             Diagnostics.instance = null;
@@ -0,0 +1,107 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class CompactEventCodecTest extends BaseTest {
+
+    private final List<String> addedKeys = new ArrayList<String>();
+    private final CompactEventCodec.KeyStore keyStore = new CompactEventCodec.KeyStore() {
+        @Override
+        public int addKey(String key) {
+            addedKeys.add(key);
+            return addedKeys.size() - 1;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        CompactEventCodec codec = new CompactEventCodec(100);
+        String event = "{\"properties\":{\"n\":0,\"min\":-9223372036854775808,\"f\":-0.5e3,"
+                + "\"s\":\"\\u00e9\\n\",\"u\":\"\u00e9\",\"a\":[[],[null,true]],\"o\":{\"n\":-0}},"
+                + "\"collection\":\"test\"}";
+        byte[] data = codec.encode(event, keyStore);
+        assertTrue(data.length < event.length());
+        assertEquals("{\"event_id\":7," + event.substring(1), codec.decode(data, 7));
+        assertEquals(9, addedKeys.size());
+
+        // keys are only added once
+        codec.encode(event, keyStore);
+        assertEquals(9, addedKeys.size());
+        assertEquals("{\"event_id\":1}", codec.decode(codec.encode(" { } ", keyStore), 1));
+    }
+
+    @Test
+    public void testKeyLimit() {
+        CompactEventCodec codec = new CompactEventCodec(2);
+        String event = "{\"a\":1,\"b\":2,\"c\":3}";
+        assertEquals("{\"event_id\":1,\"a\":1,\"b\":2,\"c\":3}",
+                codec.decode(codec.encode(event, keyStore), 1));
+        assertEquals(2, addedKeys.size());
+        assertEquals(2, codec.getKeyCount());
+    }
+
+    @Test
+    public void testMalformed() {
+        CompactEventCodec codec = new CompactEventCodec(100);
+        assertNull(codec.encode("[1]", keyStore));
+        assertNull(codec.encode("{\"a\":1", keyStore));
+        assertNull(codec.encode("{\"a\":1}x", keyStore));
+        assertNull(codec.encode("{\"a\":tru}", keyStore));
+
+        // keys missing from the dictionary of another database
+        byte[] data = codec.encode("{\"a\":1}", keyStore);
+        assertNull(new CompactEventCodec(100).decode(data, 1));
+        assertNull(codec.decode(new byte[]{CompactEventCodec.VERSION}, 1));
+        assertNull(codec.decode(new byte[0], 1));
+    }
+
+    @Test
+    public void testKeyStoreFailure() {
+        CompactEventCodec codec = new CompactEventCodec(100);
+        CompactEventCodec.KeyStore failing = new CompactEventCodec.KeyStore() {
+            @Override
+            public int addKey(String key) {
+                return -1;
+            }
+        };
+        assertNull(codec.encode("{\"a\":1}", failing));
+        assertEquals(0, codec.getKeyCount());
+
+        // ids come from the store, not from the size of the dictionary
+        CompactEventCodec.KeyStore shared = new CompactEventCodec.KeyStore() {
+            @Override
+            public int addKey(String key) {
+                return 40;
+            }
+        };
+        byte[] data = codec.encode("{\"a\":1}", shared);
+        assertEquals("{\"event_id\":1,\"a\":1}", codec.decode(data, 1));
+        CompactEventCodec other = new CompactEventCodec(100);
+        other.loadKey(40, "a");
+        assertEquals("{\"event_id\":1,\"a\":1}", other.decode(data, 1));
+    }
+}
@@ -1,5 +1,9 @@
 package io.rakam.api;
 
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Pair;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -12,6 +16,7 @@ import org.robolectric.annotation.Config;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -20,7 +25,7 @@ import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
-public class DatabaseHelperTest extends BaseTest {
+public class DatabaseHelperTest extends EventStoreTest {
 
     protected DatabaseHelper dbInstance;
 
@@ -28,6 +33,7 @@ public class DatabaseHelperTest extends BaseTest {
     public void setUp() throws Exception {
         super.setUp(false);
         dbInstance = DatabaseHelper.getDatabaseHelper(context);
+        eventStore = dbInstance;
     }
 
     @After
@@ -36,40 +42,6 @@ public class DatabaseHelperTest extends BaseTest {
         dbInstance = null;
     }
 
-    protected long addEvent(String type) {
-        return addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, type, new JSONObject());
-    }
-
-    protected long addEventToTable(String table, String type, JSONObject props) {
-        try {
-            props.put("collection", type);
-            return table.equals(DatabaseHelper.IDENTIFY_TABLE_NAME) ?
-                    dbInstance.addIdentify(props.toString()) :
-                    dbInstance.addEvent(props.toString());
-        } catch (JSONException e) {
-            fail(e.toString());
-        }
-        return -1;
-    }
-
-    protected long addIdentify(String identifyEvent) {
-        return addEventToTable(DatabaseHelper.IDENTIFY_TABLE_NAME, identifyEvent, new JSONObject());
-    }
-
-    protected long insertOrReplaceKeyValue(String key, String value) {
-        return dbInstance.insertOrReplaceKeyValue(key, value);
-    }
-
-    protected long insertOrReplaceKeyLongValue(String key, Long value) {
-        return dbInstance.insertOrReplaceKeyLongValue(key, value);
-    }
-
-    protected String getValue(String key) {
-        return dbInstance.getValue(key);
-    }
-
-    protected Long getLongValue(String key) { return dbInstance.getLongValue(key); }
-
     @Test
     public void testCreate() {
         dbInstance.onCreate(dbInstance.getWritableDatabase());
@@ -185,51 +157,6 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(1, insertOrReplaceKeyLongValue(key, longValue));
     }
 
-    @Test
-    public void testInsertOrReplaceKeyValue() {
-        String key = "test_key";
-        String value1 = "test_value1";
-        String value2 = "test_value2";
-        assertEquals(null, getValue(key));
-
-        insertOrReplaceKeyValue(key, value1);
-        assertEquals(value1, getValue(key));
-
-        insertOrReplaceKeyValue(key, value2);
-        assertEquals(value2, getValue(key));
-    }
-
-    @Test
-    public void testInsertOrReplaceKeyLongValue() {
-        String key = "test_key";
-        Long value1 = 1L;
-        Long value2 = 2L;
-        assertEquals(null, getLongValue(key));
-
-        insertOrReplaceKeyLongValue(key, value1);
-        assertEquals(value1, getLongValue(key));
-
-        insertOrReplaceKeyLongValue(key, value2);
-        assertEquals(value2, getLongValue(key));
-    }
-
-    @Test
-    public void testInsertNullValues() {
-        String key = "test_key";
-
-        assertNull(getValue(key));
-        insertOrReplaceKeyValue(key, "test");
-        assertEquals(getValue(key), "test");
-        insertOrReplaceKeyValue(key, null);
-        assertNull(getValue(key));
-
-        assertNull(getLongValue(key));
-        insertOrReplaceKeyLongValue(key, 15L);
-        assertEquals((long)getLongValue(key), 15L);
-        insertOrReplaceKeyLongValue(key, null);
-        assertNull(getValue(key));
-    }
-
     @Test
     public void testAddEvent() {
         assertEquals(1, addEvent("test_add_event"));
@@ -363,43 +290,24 @@ public class DatabaseHelperTest extends BaseTest {
     }
 
     @Test
-     public void testGetEventCount() {
-        assertEquals(1, addEvent("test_get_event_count_1"));
-        assertEquals(2, addEvent("test_get_event_count_2"));
-        assertEquals(3, addEvent("test_get_event_count_3"));
-        assertEquals(4, addEvent("test_get_event_count_4"));
-        assertEquals(5, addEvent("test_get_event_count_5"));
-
-        assertEquals(5, dbInstance.getEventCount());
-
-        dbInstance.removeEvent(1);
-        assertEquals(4, dbInstance.getEventCount());
-
-        dbInstance.removeEvents(3);
+    public void testEventCountsRebuiltAfterReset() {
+        assertEquals(1, addEvent("test_counts_1"));
+        assertEquals(2, addEvent("test_counts_2"));
+        assertEquals(1, addIdentify("test_counts_3"));
         assertEquals(2, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        assertEquals(3, dbInstance.getTotalEventCount());
 
-        dbInstance.removeEvents(10);
+        // failing insert resets the database, counters must follow the fresh tables
+        dbInstance.getWritableDatabase().execSQL(
+                "DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        assertEquals(-1, addEvent("test_counts_4"));
         assertEquals(0, dbInstance.getEventCount());
-    }
-
-    @Test
-    public void testGetIdentifyCount() {
-        assertEquals(1, addIdentify("test_get_identify_count_1"));
-        assertEquals(2, addIdentify("test_get_identify_count_2"));
-        assertEquals(3, addIdentify("test_get_identify_count_3"));
-        assertEquals(4, addIdentify("test_get_identify_count_4"));
-        assertEquals(5, addIdentify("test_get_identify_count_5"));
-
-        assertEquals(5, dbInstance.getIdentifyCount());
-
-        dbInstance.removeIdentify(1);
-        assertEquals(4, dbInstance.getIdentifyCount());
-
-        dbInstance.removeIdentifys(3);
-        assertEquals(2, dbInstance.getIdentifyCount());
-
-        dbInstance.removeIdentifys(10);
         assertEquals(0, dbInstance.getIdentifyCount());
+
+        assertEquals(1, addEvent("test_counts_5"));
+        assertEquals(1, addIdentify("test_counts_6"));
+        assertEquals(2, dbInstance.getTotalEventCount());
     }
 
     @Test
@@ -453,30 +361,75 @@ public class DatabaseHelperTest extends BaseTest {
     }
 
     @Test
-    public void testNoConflictBetweenEventsAndIdentifys() {
-        assertEquals(1, addEvent("test_add_event_id_1"));
-        assertEquals(2, addEvent("test_add_event_id_2"));
-        assertEquals(3, addEvent("test_add_event_id_3"));
-        assertEquals(4, addEvent("test_add_event_id_4"));
-        assertEquals(4, dbInstance.getEventCount());
-        assertEquals(0, dbInstance.getIdentifyCount());
+    public void testKeepConnectionOpen() {
+        dbInstance.setKeepConnectionOpen(true);
+        assertEquals(1, addEvent("test_keep_connection_open_1"));
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertTrue(db.isOpen());
 
-        assertEquals(1, addIdentify("test_add_identify_id_1"));
-        assertEquals(2, addIdentify("test_add_identify_id_2"));
-        assertEquals(4, dbInstance.getEventCount());
-        assertEquals(2, dbInstance.getIdentifyCount());
+        assertEquals(2, addEvent("test_keep_connection_open_2"));
+        assertEquals(1, insertOrReplaceKeyValue("test_key", "test_value"));
+        assertEquals(2, dbInstance.getEventCount());
+        dbInstance.removeEvents(1);
+        assertTrue(db.isOpen());
+        assertSame(db, dbInstance.getWritableDatabase());
+
+        // switching the mode off closes the long-lived connection
+        dbInstance.setKeepConnectionOpen(false);
+        assertFalse(db.isOpen());
+        assertEquals(1, dbInstance.getEventCount());
+    }
 
-        dbInstance.removeEvent(1);
-        assertEquals(3, dbInstance.getEventCount());
-        assertEquals(2, dbInstance.getIdentifyCount());
+    @Test
+    public void testKeepConnectionOpenRecoversFromDeletedFile() {
+        dbInstance.setKeepConnectionOpen(true);
+        assertEquals(1, addEvent("test_deleted_file_1"));
+        assertEquals(2, addEvent("test_deleted_file_2"));
+
+        context.deleteDatabase(dbInstance.file.getName());
+        assertFalse(dbInstance.dbFileExists());
+
+        // the connection is reopened on a fresh file, so ids start over
+        assertEquals(1, addEvent("test_deleted_file_3"));
+        assertEquals(1, dbInstance.getEventCount());
+        assertTrue(dbInstance.dbFileExists());
+    }
 
-        dbInstance.removeIdentify(1);
+    @Test
+    public void testTunedProfile() {
+        dbInstance.setKeepConnectionOpen(true);
+        dbInstance.setWriteAheadLogging(true);
+        dbInstance.setDurableWrites(false);
+        assertTrue(dbInstance.getWritableDatabase().isWriteAheadLoggingEnabled());
+
+        // compiled statements are reused across calls and bind nulls
+        assertEquals(1, addEvent("test_tuned_1"));
+        assertEquals(2, addEvent("test_tuned_2"));
+        assertEquals(3, dbInstance.addEvent(null));
+        assertEquals(1, addIdentify("test_tuned_identify"));
         assertEquals(3, dbInstance.getEventCount());
-        assertEquals(1, dbInstance.getIdentifyCount());
 
-        dbInstance.removeEvents(4);
+        assertEquals(1, insertOrReplaceKeyValue("test_key", "test_value1"));
+        assertEquals(2, insertOrReplaceKeyValue("test_key", "test_value2"));
+        assertEquals("test_value2", getValue("test_key"));
+        insertOrReplaceKeyLongValue("test_long_key", 7L);
+        assertEquals(7L, (long) getLongValue("test_long_key"));
+        insertOrReplaceKeyValue("test_key", null);
+        assertNull(getValue("test_key"));
+
+        dbInstance.removeEvent(2);
+        dbInstance.removeEvents(1);
+        assertEquals(1, dbInstance.getEventCount());
+        dbInstance.removeEventRange(2, 3);
         assertEquals(0, dbInstance.getEventCount());
         assertEquals(1, dbInstance.getIdentifyCount());
+
+        // switching the profile off reopens the connection with the defaults
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        dbInstance.setWriteAheadLogging(false);
+        assertFalse(db.isOpen());
+        assertFalse(dbInstance.getWritableDatabase().isWriteAheadLoggingEnabled());
+        assertEquals(4, addEvent("test_tuned_3"));
     }
 
     @Test
@@ -486,6 +439,181 @@ public class DatabaseHelperTest extends BaseTest {
         assertTrue(events.isEmpty());
     }
 
+    @Test
+    public void testGetRawEvents() throws JSONException {
+        dbInstance.addEvent("{\"event_type\":\"test1\"}");
+        dbInstance.addEvent("{}");
+        dbInstance.addEvent("{ \"event_type\":\"test3\"}");
+
+        List<Pair<Long, String>> events = dbInstance.getRawEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals(1, (long) events.get(0).first);
+        assertEquals("{\"event_id\":1,\"event_type\":\"test1\"}", events.get(0).second);
+        assertEquals("{\"event_id\":2}", events.get(1).second);
+        JSONObject third = new JSONObject(events.get(2).second);
+        assertEquals(3, third.getLong("event_id"));
+        assertEquals("test3", third.getString("event_type"));
+    }
+
+    @Test
+    public void testCompactEncoding() throws JSONException {
+        String text = "{\"properties\":{\"count\":-12,\"price\":1.5,\"name\":\"a\\\"b\\/c\",\"on\":true,"
+                + "\"off\":false,\"none\":null,\"list\":[1,\"x\",{}],\"big\":123456789012345678901},"
+                + "\"collection\":\"test\"}";
+        dbInstance.addEvent(text);
+        dbInstance.setCompactEncoding(true);
+        dbInstance.addEvent(text);
+        // not something the codec encodes, stored as text
+        dbInstance.addEvent("{'a':1}");
+        dbInstance.setCompactEncoding(false);
+        dbInstance.addEvent("{}");
+
+        List<Pair<Long, String>> events = dbInstance.getRawEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals(DatabaseHelper.withEventId(text, 1), events.get(0).second);
+        assertEquals(DatabaseHelper.withEventId(text, 2), events.get(1).second);
+        assertEquals("{\"event_id\":3,'a':1}", events.get(2).second);
+        assertEquals("{\"event_id\":4}", events.get(3).second);
+
+        // the dictionary is read back from the table by a new connection
+        dbInstance.close();
+        DatabaseHelper.instances.clear();
+        dbInstance = DatabaseHelper.getDatabaseHelper(context);
+        dbInstance.setCompactEncoding(true);
+        dbInstance.setKeepConnectionOpen(true);
+        dbInstance.addEvent(text);
+        events = dbInstance.getRawEvents(1, -1, -1);
+        assertEquals(4, events.size());
+        assertEquals(DatabaseHelper.withEventId(text, 2), events.get(0).second);
+        assertEquals(DatabaseHelper.withEventId(text, 5), events.get(3).second);
+    }
+
+    @Test
+    public void testCompactEncodingKeysFromAnotherProcess() throws JSONException {
+        dbInstance.setCompactEncoding(true);
+        String text = "{\"collection\":\"test\"}";
+        dbInstance.addEvent(text);
+
+        // another process adds a key and an event using it behind the loaded dictionary
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_KEYS_TABLE_NAME
+                + " (id, key) VALUES (2, 'other')");
+        CompactEventCodec otherCodec = new CompactEventCodec(100);
+        byte[] data = otherCodec.encode("{\"other\":1}", new CompactEventCodec.KeyStore() {
+            @Override
+            public int addKey(String key) {
+                return 2;
+            }
+        });
+        ContentValues contentValues = new ContentValues();
+        contentValues.put("data", data);
+        db.insert(DatabaseHelper.EVENT_TABLE_NAME, null, contentValues);
+
+        // the dictionary is reloaded instead of skipping the event
+        List<Pair<Long, String>> events = dbInstance.getRawEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals("{\"event_id\":2,\"other\":1}", events.get(1).second);
+
+        // a key the other process stored first keeps its id, nothing gets reset
+        db = dbInstance.getWritableDatabase();
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_KEYS_TABLE_NAME
+                + " (id, key) VALUES (3, 'third')");
+        dbInstance.addEvent("{\"third\":3}");
+        assertEquals(3, dbInstance.getEventCount());
+
+        dbInstance.close();
+        DatabaseHelper.instances.clear();
+        dbInstance = DatabaseHelper.getDatabaseHelper(context);
+        events = dbInstance.getRawEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals(DatabaseHelper.withEventId(text, 1), events.get(0).second);
+        assertEquals("{\"event_id\":3,\"third\":3}", events.get(2).second);
+    }
+
+    @Test
+    public void testUpgradeVersion3ToVersion4() throws JSONException {
+        // events stored as text by version 3 stay readable
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_KEYS_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        assertEquals(1, addEvent("test_upgrade"));
+
+        dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 3, 4);
+        dbInstance.setCompactEncoding(true);
+        assertEquals(2, addEvent("test_upgrade"));
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(i + 1, events.get(i).getLong("event_id"));
+            assertEquals("test_upgrade", events.get(i).getString("collection"));
+        }
+    }
+
+    @Test
+    public void testEventBytes() {
+        dbInstance.addEvent("{\"collection\":\"test1\"}");
+        dbInstance.addIdentify("{}");
+        assertEquals(22, dbInstance.getEventBytes());
+        assertEquals(2, dbInstance.getIdentifyBytes());
+
+        // tracked from here on, by inserts and by every kind of removal
+        dbInstance.addEvent("{\"collection\":\"caf\u00e9\"}");
+        dbInstance.addEvent("{\"collection\":\"test3\"}", EventPriority.BULK);
+        dbInstance.addEvent("{\"collection\":\"test4\"}");
+        assertEquals(4 * 22, dbInstance.getEventBytes());
+        dbInstance.removeEvent(2);
+        assertEquals(3 * 22, dbInstance.getEventBytes());
+        dbInstance.removeOldestEvents(1, EventPriority.BULK);
+        dbInstance.removeOldestEvents(1);
+        assertEquals(22, dbInstance.getEventBytes());
+        dbInstance.removeEventRange(3, 4);
+        dbInstance.removeIdentifys(1);
+        assertEquals(0, dbInstance.getEventBytes());
+        assertEquals(0, dbInstance.getIdentifyBytes());
+
+        // compact encoded events count their encoded size
+        dbInstance.setCompactEncoding(true);
+        String event = "{\"collection\":\"test5\",\"properties\":{\"a\":1}}";
+        dbInstance.addEvent(event);
+        long bytes = dbInstance.getEventBytes();
+        assertTrue(bytes > 0 && bytes < event.length());
+        dbInstance.setKeepConnectionOpen(true);
+        dbInstance.removeEvents(5);
+        assertEquals(0, dbInstance.getEventBytes());
+    }
+
+    @Test
+    public void testRemoveOldestEventsByPriority() throws JSONException {
+        dbInstance.addEvent("{\"collection\":\"bulk1\"}", EventPriority.BULK);
+        dbInstance.addEvent("{\"collection\":\"revenue\"}", EventPriority.CRITICAL);
+        addEvent("normal");
+        dbInstance.addEvent("{\"collection\":\"bulk2\"}", EventPriority.BULK);
+        dbInstance.addEvent("{\"collection\":\"bulk3\"}", EventPriority.BULK);
+        assertEquals(3, dbInstance.getEventCount(EventPriority.BULK));
+        assertEquals(1, dbInstance.getEventCount(EventPriority.NORMAL));
+        assertEquals(1, dbInstance.getEventCount(EventPriority.CRITICAL));
+
+        // only the oldest events of the priority go, in id order
+        assertEquals(2, dbInstance.removeOldestEvents(2, EventPriority.BULK));
+        assertEquals(1, dbInstance.getEventCount(EventPriority.BULK));
+        assertEquals(3, dbInstance.getEventCount());
+        List<Pair<Long, String>> events = dbInstance.getRawEvents(-1, -1);
+        assertEquals(2, (long) events.get(0).first);
+        assertEquals(3, (long) events.get(1).first);
+        assertEquals(5, (long) events.get(2).first);
+
+        // counts are queried again after range removals
+        dbInstance.removeEventRange(1, 2);
+        assertEquals(0, dbInstance.getEventCount(EventPriority.CRITICAL));
+        assertEquals(1, dbInstance.removeOldestEvents(5, EventPriority.NORMAL));
+        assertEquals(0, dbInstance.removeOldestEvents(1, EventPriority.CRITICAL));
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(5, dbInstance.getNthEventId(1));
+    }
+
     @Test
     public void testGetDatabaseHelper() {
         assertEquals(DatabaseHelper.instances.size(), 1);
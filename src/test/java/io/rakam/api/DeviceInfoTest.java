@@ -7,6 +7,7 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.provider.Settings.Secure;
 import android.telephony.TelephonyManager;
 
@@ -247,6 +248,57 @@ public class DeviceInfoTest {
         assertEquals(loc, deviceInfo.getMostRecentLocation());
     }
 
+    @Test
+    public void testCachedLocation() {
+        DeviceInfo deviceInfo = new DeviceInfo(context);
+        ShadowLocationManager locationManager = Shadows.shadowOf((LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE));
+        locationManager.setProviderEnabled(LocationManager.NETWORK_PROVIDER, true);
+        Location loc1 = makeLocation(LocationManager.NETWORK_PROVIDER, TEST_LOCATION_LAT,
+                TEST_LOCATION_LNG);
+        locationManager.simulateLocation(loc1);
+        assertEquals(loc1, deviceInfo.getMostRecentLocation());
+
+        // served from memory until the ttl expires
+        Location loc2 = makeLocation(LocationManager.NETWORK_PROVIDER, 0, 0);
+        loc2.setTime(loc1.getTime() + 1);
+        locationManager.simulateLocation(loc2);
+        assertEquals(loc1, deviceInfo.getMostRecentLocation());
+        SystemClock.sleep(Constants.LOCATION_TTL_MILLIS);
+        assertEquals(loc2, deviceInfo.getMostRecentLocation());
+
+        deviceInfo.setLocationListening(false);
+        assertNull(deviceInfo.getMostRecentLocation());
+        deviceInfo.setLocationListening(true);
+        deviceInfo.setLocationTtlMillis(0);
+        Location loc3 = makeLocation(LocationManager.NETWORK_PROVIDER, 1, 1);
+        loc3.setTime(loc2.getTime() + 1);
+        locationManager.simulateLocation(loc3);
+        assertEquals(loc3, deviceInfo.getMostRecentLocation());
+    }
+
+    @Test
+    public void testPassiveLocationUpdates() {
+        DeviceInfo deviceInfo = new DeviceInfo(context);
+        ShadowLocationManager locationManager = Shadows.shadowOf((LocationManager) context
+                .getSystemService(Context.LOCATION_SERVICE));
+        assertNull(deviceInfo.getMostRecentLocation());
+
+        deviceInfo.setPassiveLocationUpdates(true);
+        assertEquals(1, locationManager.getRequestLocationUpdateListeners().size());
+        Location loc = makeLocation(LocationManager.PASSIVE_PROVIDER, TEST_LOCATION_LAT,
+                TEST_LOCATION_LNG);
+        locationManager.getRequestLocationUpdateListeners().get(0).onLocationChanged(loc);
+        assertEquals(loc, deviceInfo.getMostRecentLocation());
+
+        deviceInfo.setLocationListening(false);
+        assertEquals(0, locationManager.getRequestLocationUpdateListeners().size());
+        deviceInfo.setLocationListening(true);
+        assertEquals(1, locationManager.getRequestLocationUpdateListeners().size());
+        deviceInfo.setPassiveLocationUpdates(false);
+        assertEquals(0, locationManager.getRequestLocationUpdateListeners().size());
+    }
+
     @Test
     public void testNoLocation() {
         DeviceInfo deviceInfo = new DeviceInfo(context);
@@ -0,0 +1,79 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class EventAggregatorTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void testKeys() throws JSONException {
+        EventAggregator aggregator = new EventAggregator(3);
+        assertTrue(aggregator.isEmpty());
+        assertTrue(aggregator.addCount("test", null, 1, 1));
+        assertFalse(aggregator.addCount("test", null, 1, 2));
+        assertTrue(aggregator.addCount("test", new JSONObject().put("a", 1), 1, 3));
+        assertTrue(aggregator.addValue(EventAggregator.GAUGE, "test", null, 1, 4));
+
+        // too many keys
+        assertFalse(aggregator.addCount("other", null, 1, 5));
+        List<Pair<String, JSONObject>> summaries = aggregator.drain();
+        assertEquals(3, summaries.size());
+        assertTrue(aggregator.isEmpty());
+        assertTrue(aggregator.addCount("other", null, 1, 6));
+    }
+
+    @Test
+    public void testHistogram() throws JSONException {
+        EventAggregator aggregator = new EventAggregator(10);
+        double[] values = {-1, 0, 0.3, 1, 1.5, 2, 3, 1000};
+        for (int i = 0; i < values.length; i++) {
+            aggregator.addValue(EventAggregator.HISTOGRAM, "latency", null, values[i], 10 + i);
+        }
+
+        Pair<String, JSONObject> summary = aggregator.drain().get(0);
+        assertEquals("latency", summary.first);
+        JSONObject properties = summary.second;
+        assertEquals("histogram", properties.getString("_aggregation"));
+        assertEquals(8, properties.getLong("_count"));
+        assertEquals(1006.8, properties.getDouble("_sum"), 1e-9);
+        assertEquals(-1, properties.getDouble("_min"), 0);
+        assertEquals(1000, properties.getDouble("_max"), 0);
+        assertEquals(10, properties.getLong("_start_time"));
+        assertEquals(17, properties.getLong("_end_time"));
+
+        JSONObject buckets = properties.getJSONObject("_buckets");
+        assertEquals(6, buckets.length());
+        assertEquals(2, buckets.getLong("0"));
+        assertEquals(1, buckets.getLong("0.5"));
+        assertEquals(1, buckets.getLong("1"));
+        assertEquals(2, buckets.getLong("2"));
+        assertEquals(1, buckets.getLong("4"));
+        assertEquals(1, buckets.getLong("1024"));
+    }
+}
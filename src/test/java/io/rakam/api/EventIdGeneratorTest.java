@@ -0,0 +1,93 @@
+package io.rakam.api;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class EventIdGeneratorTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static String nextId(EventIdGenerator generator, long timestamp) {
+        StringBuilder out = new StringBuilder();
+        generator.appendId(timestamp, out);
+        return out.toString();
+    }
+
+    @Test
+    public void testTimeOrderedLayout() {
+        long timestamp = 1500000000123L;
+        String id = nextId(new EventIdGenerator.TimeOrdered(-1L), timestamp);
+        UUID uuid = UUID.fromString(id);
+        assertEquals(id, uuid.toString());
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        assertEquals(timestamp, uuid.getMostSignificantBits() >>> 16);
+        assertEquals(0x3FFFFFFFFFFFFFFFL, uuid.getLeastSignificantBits() & 0x3FFFFFFFFFFFFFFFL);
+    }
+
+    @Test
+    public void testTimeOrderedIdsIncrease() {
+        EventIdGenerator generator = new EventIdGenerator.TimeOrdered(42);
+        long timestamp = 1500000000000L;
+        String previous = nextId(generator, timestamp);
+
+        // the same millisecond, a clock that went back, and enough ids to overflow the counter
+        long[] timestamps = {timestamp, timestamp - 1000, timestamp + 1};
+        for (long t : timestamps) {
+            for (int i = 0; i < 5000; i++) {
+                String id = nextId(generator, t);
+                assertTrue(id.compareTo(previous) > 0);
+                previous = id;
+            }
+        }
+    }
+
+    @Test
+    public void testRandomUUID() {
+        UUID uuid = UUID.fromString(nextId(EventIdGenerator.randomUUID(), 0));
+        assertEquals(4, uuid.version());
+    }
+
+    @Test
+    public void testEventIds() {
+        rakam.setEventIdGenerator(new EventIdGenerator() {
+            @Override
+            protected void appendId(long timestamp, StringBuilder out) {
+                out.append("id-").append(timestamp);
+            }
+        });
+        rakam.logEvent("test", new JSONObject());
+        Shadows.shadowOf(rakam.logThread.getLooper()).runToEndOfTasks();
+
+        JSONObject properties = getLastUnsentEvent().optJSONObject("properties");
+        assertEquals("id-" + properties.optLong("_time"), properties.optString("_id"));
+
+        // the default generator again
+        rakam.setEventIdGenerator(null);
+        rakam.logEvent("test3");
+        Shadows.shadowOf(rakam.logThread.getLooper()).runToEndOfTasks();
+        String id = getLastUnsentEvent().optJSONObject("properties").optString("_id");
+        assertEquals(7, UUID.fromString(id).version());
+    }
+}
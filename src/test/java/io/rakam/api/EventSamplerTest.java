@@ -0,0 +1,106 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class EventSamplerTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void testRates() {
+        EventSampler sampler = new EventSampler();
+        assertFalse(sampler.isSampled());
+        assertEquals(1, sampler.getRate("test"), 0);
+
+        sampler.setRate("test", 0.25);
+        assertTrue(sampler.isSampled());
+        assertEquals(0.25, sampler.getRate("test"), 0);
+        assertEquals(1, sampler.getRate("other"), 0);
+
+        sampler.setRate("test", 1);
+        assertFalse(sampler.isSampled());
+    }
+
+    @Test
+    public void testKeep() {
+        EventSampler sampler = new EventSampler();
+        double point = EventSampler.point("device");
+        assertEquals(point, EventSampler.point("device"), 0);
+        assertTrue(point >= 0 && point < 1);
+
+        assertTrue(sampler.keep("device", 1));
+        assertTrue(sampler.keep(null, 0));
+        assertFalse(sampler.keep("device", 0));
+        assertFalse(sampler.keep("device", point));
+        assertTrue(sampler.keep("device", Math.nextUp(point)));
+
+        // roughly the rate of devices are kept
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (sampler.keep("device" + i, 0.1)) {
+                kept++;
+            }
+        }
+        assertTrue(kept > 800 && kept < 1200);
+    }
+
+    @Test
+    public void testKeepFromSeveralThreads() throws InterruptedException {
+        final EventSampler sampler = new EventSampler();
+        // two devices on either side of the rate
+        String low = null;
+        String high = null;
+        for (int i = 0; low == null || high == null; i++) {
+            double point = EventSampler.point("device" + i);
+            if (point < 0.3) {
+                low = "device" + i;
+            } else if (point >= 0.7) {
+                high = "device" + i;
+            }
+        }
+        final String[] devices = {low, high};
+
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        int device = (i + offset) % 2;
+                        if (sampler.keep(devices[device], 0.5) != (device == 0)) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, wrong.get());
+    }
+}
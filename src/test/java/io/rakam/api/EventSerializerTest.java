@@ -0,0 +1,157 @@
+package io.rakam.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class EventSerializerTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static String repeat(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void testMatchesTruncateAndToString() throws JSONException {
+        String longString = repeat('c', Constants.MAX_STRING_LENGTH * 2);
+        JSONObject eventProperties = new JSONObject()
+                .put("int", 10)
+                .put("double", 1.5)
+                .put("bool", false)
+                .put("null", JSONObject.NULL)
+                .put("escaped", "quote\" slash/ back\\ newline\n tab\t \u0001 \u00e9")
+                .put("long string", longString)
+                .put("array", new JSONArray().put(longString).put(10).put(new JSONObject()))
+                .put("object", new JSONObject().put("long string", longString));
+
+        String serialized = new EventSerializer(eventProperties, null)
+                .property("_id", "id")
+                .property("_time", 1000L)
+                .property("_user", null)
+                .toEventString("test");
+
+        JSONObject properties = new JSONObject()
+                .put("_id", "id")
+                .put("_time", 1000L)
+                .put("_user", JSONObject.NULL);
+        JSONObject copy = new JSONObject(eventProperties.toString());
+        JSONArray keys = copy.names();
+        for (int i = 0; i < keys.length(); i++) {
+            properties.put(keys.getString(i), copy.get(keys.getString(i)));
+        }
+        JSONObject expected = new JSONObject()
+                .put("properties", rakam.truncate(properties))
+                .put("collection", "test");
+        assertEquals(expected.toString(), serialized);
+    }
+
+    @Test
+    public void testOverrides() throws JSONException {
+        JSONObject eventProperties = new JSONObject().put("a", "event").put("_id", "event");
+        JSONObject superProperties = new JSONObject().put("a", "super").put("b", "super")
+                .put("_time", "super");
+
+        JSONObject event = new JSONObject(new EventSerializer(eventProperties, superProperties)
+                .property("_id", "sdk")
+                .property("_time", "sdk")
+                .property("_user", "sdk")
+                .toEventString("test"));
+        JSONObject properties = event.getJSONObject("properties");
+        assertEquals(5, properties.length());
+        assertEquals("event", properties.getString("a"));
+        assertEquals("event", properties.getString("_id"));
+        assertEquals("super", properties.getString("b"));
+        assertEquals("super", properties.getString("_time"));
+        assertEquals("sdk", properties.getString("_user"));
+        assertEquals("test", event.getString("collection"));
+    }
+
+    @Test
+    public void testTooManyProperties() throws JSONException {
+        JSONObject eventProperties = new JSONObject();
+        for (int i = 0; i < Constants.MAX_PROPERTY_KEYS; i++) {
+            eventProperties.put("key" + i, i);
+        }
+
+        // nested objects over the limit are emptied
+        JSONObject nested = new JSONObject(eventProperties.toString()).put("one more", 1);
+        JSONObject event = new JSONObject(new EventSerializer(
+                new JSONObject().put("nested", nested).put("other", 1), null
+        ).toEventString("test"));
+        assertEquals(0, event.getJSONObject("properties").getJSONObject("nested").length());
+        assertEquals(1, event.getJSONObject("properties").getInt("other"));
+
+        // so are the event properties, once merged with the ones the SDK adds
+        event = new JSONObject(new EventSerializer(eventProperties, null)
+                .property("_id", "id")
+                .toEventString("test"));
+        assertEquals(0, event.getJSONObject("properties").length());
+        assertEquals("test", event.getString("collection"));
+
+        event = new JSONObject(new EventSerializer(eventProperties, null)
+                .property("key0", "id")
+                .toEventString("test"));
+        assertEquals(Constants.MAX_PROPERTY_KEYS, event.getJSONObject("properties").length());
+    }
+
+    @Test
+    public void testEventBuilder() throws JSONException {
+        EventBuilder builder = EventBuilder.obtain("test")
+                .putLong("long", Long.MAX_VALUE)
+                .putDouble("double", 1.5)
+                .putDouble("integral double", 2.0)
+                .putBoolean("bool", true)
+                .putString("string", "quote\"")
+                .putString("null", null)
+                .putString("long string", repeat('c', Constants.MAX_STRING_LENGTH * 2))
+                .putLong("bool", 3);
+        JSONObject superProperties = new JSONObject().put("long", "super").put("super", 1);
+
+        String serialized = new EventSerializer(null, builder, superProperties)
+                .property("_id", "id")
+                .property("double", "sdk")
+                .toEventString("test");
+
+        JSONObject expected = new JSONObject()
+                .put("_id", "id")
+                .put("long", Long.MAX_VALUE)
+                .put("double", 1.5)
+                .put("integral double", 2.0)
+                .put("bool", 3)
+                .put("string", "quote\"")
+                .put("null", JSONObject.NULL)
+                .put("long string", repeat('c', Constants.MAX_STRING_LENGTH))
+                .put("super", 1);
+        assertEquals(new JSONObject().put("properties", expected).put("collection", "test")
+                .toString(), serialized);
+    }
+
+    @Test(expected = JSONException.class)
+    public void testEventBuilderNaN() throws JSONException {
+        new EventSerializer(null, EventBuilder.obtain("test").putDouble("nan", Double.NaN), null)
+                .toEventString("test");
+    }
+}
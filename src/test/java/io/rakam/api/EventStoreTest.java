@@ -0,0 +1,246 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the {@link EventStore} contract, run against every implementation by its subclasses.
+ * Subclasses set {@link #eventStore} in their setUp.
+ */
+public abstract class EventStoreTest extends BaseTest {
+
+    protected EventStore eventStore;
+
+    protected long addEvent(String type) {
+        return addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, type, new JSONObject());
+    }
+
+    protected long addEventToTable(String table, String type, JSONObject props) {
+        try {
+            props.put("collection", type);
+            return table.equals(DatabaseHelper.IDENTIFY_TABLE_NAME) ?
+                    eventStore.addIdentify(props.toString()) :
+                    eventStore.addEvent(props.toString());
+        } catch (JSONException e) {
+            fail(e.toString());
+        }
+        return -1;
+    }
+
+    protected long addIdentify(String identifyEvent) {
+        return addEventToTable(DatabaseHelper.IDENTIFY_TABLE_NAME, identifyEvent, new JSONObject());
+    }
+
+    protected long insertOrReplaceKeyValue(String key, String value) {
+        return eventStore.insertOrReplaceKeyValue(key, value);
+    }
+
+    protected long insertOrReplaceKeyLongValue(String key, Long value) {
+        return eventStore.insertOrReplaceKeyLongValue(key, value);
+    }
+
+    protected String getValue(String key) {
+        return eventStore.getValue(key);
+    }
+
+    protected Long getLongValue(String key) { return eventStore.getLongValue(key); }
+
+    private long getFirstEventId() throws JSONException {
+        List<Pair<Long, String>> events = eventStore.getRawEvents(-1, -1, 1);
+        return events.isEmpty() ? -1 : events.get(0).first;
+    }
+
+    @Test
+    public void testInsertOrReplaceKeyValue() {
+        String key = "test_key";
+        String value1 = "test_value1";
+        String value2 = "test_value2";
+        assertEquals(null, getValue(key));
+
+        insertOrReplaceKeyValue(key, value1);
+        assertEquals(value1, getValue(key));
+
+        insertOrReplaceKeyValue(key, value2);
+        assertEquals(value2, getValue(key));
+    }
+
+    @Test
+    public void testInsertOrReplaceKeyLongValue() {
+        String key = "test_key";
+        Long value1 = 1L;
+        Long value2 = 2L;
+        assertEquals(null, getLongValue(key));
+
+        insertOrReplaceKeyLongValue(key, value1);
+        assertEquals(value1, getLongValue(key));
+
+        insertOrReplaceKeyLongValue(key, value2);
+        assertEquals(value2, getLongValue(key));
+    }
+
+    @Test
+    public void testInsertNullValues() {
+        String key = "test_key";
+
+        assertNull(getValue(key));
+        insertOrReplaceKeyValue(key, "test");
+        assertEquals(getValue(key), "test");
+        insertOrReplaceKeyValue(key, null);
+        assertNull(getValue(key));
+
+        assertNull(getLongValue(key));
+        insertOrReplaceKeyLongValue(key, 15L);
+        assertEquals((long)getLongValue(key), 15L);
+        insertOrReplaceKeyLongValue(key, null);
+        assertNull(getValue(key));
+    }
+
+    @Test
+    public void testAddAndGetRawEvents() throws JSONException {
+        assertEquals(1, addEvent("test_raw_1"));
+        assertEquals(2, addEvent("test_raw_2"));
+        assertEquals(3, addEvent("test_raw_3"));
+        assertEquals(1, addIdentify("test_raw_identify"));
+
+        List<Pair<Long, String>> events = eventStore.getRawEvents(-1, -1, -1);
+        assertEquals(3, events.size());
+        assertEquals(1, (long) events.get(0).first);
+        assertEquals("{\"event_id\":1,\"collection\":\"test_raw_1\"}", events.get(0).second);
+        assertEquals(3, (long) events.get(2).first);
+
+        assertEquals(2, eventStore.getRawEvents(1, -1, -1).size());
+        assertEquals(2, eventStore.getRawEvents(-1, 2, -1).size());
+        assertEquals(1, eventStore.getRawEvents(-1, -1, 1).size());
+
+        List<Pair<Long, String>> identifys = eventStore.getRawIdentifys(-1, -1, -1);
+        assertEquals(1, identifys.size());
+        assertEquals("test_raw_identify",
+                new JSONObject(identifys.get(0).second).getString("collection"));
+    }
+
+    @Test
+    public void testGetEventCount() {
+        assertEquals(1, addEvent("test_get_event_count_1"));
+        assertEquals(2, addEvent("test_get_event_count_2"));
+        assertEquals(3, addEvent("test_get_event_count_3"));
+        assertEquals(4, addEvent("test_get_event_count_4"));
+        assertEquals(5, addEvent("test_get_event_count_5"));
+
+        assertEquals(5, eventStore.getEventCount());
+
+        eventStore.removeEvent(1);
+        assertEquals(4, eventStore.getEventCount());
+
+        eventStore.removeEvents(3);
+        assertEquals(2, eventStore.getEventCount());
+
+        eventStore.removeEvents(10);
+        assertEquals(0, eventStore.getEventCount());
+    }
+
+    @Test
+    public void testGetIdentifyCount() {
+        assertEquals(1, addIdentify("test_get_identify_count_1"));
+        assertEquals(2, addIdentify("test_get_identify_count_2"));
+        assertEquals(3, addIdentify("test_get_identify_count_3"));
+        assertEquals(4, addIdentify("test_get_identify_count_4"));
+        assertEquals(5, addIdentify("test_get_identify_count_5"));
+
+        assertEquals(5, eventStore.getIdentifyCount());
+
+        eventStore.removeIdentify(1);
+        assertEquals(4, eventStore.getIdentifyCount());
+
+        eventStore.removeIdentifys(3);
+        assertEquals(2, eventStore.getIdentifyCount());
+
+        eventStore.removeIdentifys(10);
+        assertEquals(0, eventStore.getIdentifyCount());
+    }
+
+    @Test
+    public void testNoConflictBetweenEventsAndIdentifys() {
+        assertEquals(1, addEvent("test_add_event_id_1"));
+        assertEquals(2, addEvent("test_add_event_id_2"));
+        assertEquals(3, addEvent("test_add_event_id_3"));
+        assertEquals(4, addEvent("test_add_event_id_4"));
+        assertEquals(4, eventStore.getEventCount());
+        assertEquals(0, eventStore.getIdentifyCount());
+
+        assertEquals(1, addIdentify("test_add_identify_id_1"));
+        assertEquals(2, addIdentify("test_add_identify_id_2"));
+        assertEquals(4, eventStore.getEventCount());
+        assertEquals(2, eventStore.getIdentifyCount());
+        assertEquals(6, eventStore.getTotalEventCount());
+
+        eventStore.removeEvent(1);
+        assertEquals(3, eventStore.getEventCount());
+        assertEquals(2, eventStore.getIdentifyCount());
+
+        eventStore.removeIdentify(1);
+        assertEquals(3, eventStore.getEventCount());
+        assertEquals(1, eventStore.getIdentifyCount());
+
+        eventStore.removeEvents(4);
+        assertEquals(0, eventStore.getEventCount());
+        assertEquals(1, eventStore.getIdentifyCount());
+    }
+
+    @Test
+    public void testRemoveEventRange() throws JSONException {
+        for (int i = 1; i <= 6; i++) {
+            addEvent("test" + i);
+        }
+
+        List<Pair<Long, String>> events = eventStore.getRawEvents(2, 5, 10);
+        assertEquals(3, events.size());
+        assertEquals(3, (long) events.get(0).first);
+        assertEquals(5, (long) events.get(2).first);
+
+        eventStore.removeEventRange(2, 4);
+        assertEquals(4, eventStore.getEventCount());
+        events = eventStore.getRawEvents(-1, -1, -1);
+        assertEquals(2, (long) events.get(1).first);
+        assertEquals(5, (long) events.get(2).first);
+    }
+
+    @Test
+    public void testRemoveOldestEvents() throws JSONException {
+        for (int i = 1; i <= 10; i++) {
+            addEvent("test" + i);
+        }
+
+        assertEquals(3, eventStore.removeOldestEvents(3));
+        assertEquals(7, eventStore.getEventCount());
+        assertEquals(4, getFirstEventId());
+
+        // gaps in the ids are skipped
+        eventStore.removeEvent(5);
+        eventStore.removeEventRange(6, 7);
+        assertEquals(2, eventStore.removeOldestEvents(2));
+        List<Pair<Long, String>> events = eventStore.getRawEvents(-1, -1, -1);
+        assertEquals(2, events.size());
+        assertEquals(9, (long) events.get(0).first);
+
+        // uploads removing the oldest rows move the window too
+        eventStore.removeEvents(9);
+        addEvent("test11");
+        addEvent("test12");
+        assertEquals(1, eventStore.removeOldestEvents(1));
+        assertEquals(11, getFirstEventId());
+
+        assertEquals(2, eventStore.removeOldestEvents(5));
+        assertEquals(0, eventStore.getEventCount());
+        assertEquals(0, eventStore.removeOldestEvents(1));
+        assertEquals(0, eventStore.removeOldestIdentifys(1));
+    }
+}
@@ -0,0 +1,61 @@
+package io.rakam.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class EventUploadRequestBodyTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception { setUp(false); }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testWriteTo() throws IOException, JSONException {
+        List<String> events = new ArrayList<String>();
+        events.add(new JSONObject().put("event_type", "test1").toString());
+        events.add(new JSONObject().put("event_type", "\u00fcnicode").toString());
+        String api = new JSONObject().put("api_key", "key").toString();
+        EventUploadRequestBody body = new EventUploadRequestBody(api, events);
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(body.contentLength(), buffer.size());
+
+        JSONObject payload = new JSONObject(buffer.readUtf8());
+        assertEquals("key", payload.getJSONObject("api").getString("api_key"));
+        JSONArray uploaded = payload.getJSONArray("events");
+        assertEquals(2, uploaded.length());
+        assertEquals("test1", uploaded.getJSONObject(0).getString("event_type"));
+        assertEquals("\u00fcnicode", uploaded.getJSONObject(1).getString("event_type"));
+        assertEquals(RakamClient.JSON, body.contentType());
+    }
+
+    @Test
+    public void testWriteToEmpty() throws IOException, JSONException {
+        EventUploadRequestBody body = new EventUploadRequestBody("{}", new ArrayList<String>());
+
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals("{\"api\":{},\"events\":[]}", buffer.readUtf8());
+        assertEquals(0, body.getEventCount());
+    }
+}
@@ -0,0 +1,107 @@
+package io.rakam.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class IdentifyCoalescerTest extends BaseTest {
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static JSONObject identify(long eventId, String user, Identify identify)
+            throws JSONException {
+        JSONObject properties = new JSONObject(identify.userPropertiesOperations.toString())
+                .put("_user", user).put("_session_id", 10).put("_time", eventId);
+        return new JSONObject().put("event_id", eventId).put("properties", properties);
+    }
+
+    // serialized the way EventSerializer writes it, with the collection last
+    private static String serialize(JSONObject identify) {
+        String text = identify.toString();
+        return text.substring(0, text.length() - 1)
+                + ",\"collection\":\"" + Constants.IDENTIFY_EVENT + "\"}";
+    }
+
+    @Test
+    public void testMergeOperations() throws JSONException {
+        JSONObject first = identify(1, "user", new Identify()
+                .set("a", 1).setOnce("b", 2).add("c", 3).unset("d").set("e", 5));
+        JSONObject second = identify(2, "user", new Identify()
+                .set("a", 10).setOnce("b", 20).add("c", 0.5).setOnce("d", 40).unset("e"));
+
+        JSONObject merged = IdentifyCoalescer.merge(first, second);
+        assertEquals(2, merged.getLong("event_id"));
+        assertEquals(Constants.IDENTIFY_EVENT, merged.getString("collection"));
+        JSONObject properties = merged.getJSONObject("properties");
+        assertEquals(2, properties.getLong("_time"));
+        assertEquals(10, properties.getJSONObject(Constants.AMP_OP_SET).getInt("a"));
+        assertEquals(40, properties.getJSONObject(Constants.AMP_OP_SET).getInt("d"));
+        assertEquals(2, properties.getJSONObject(Constants.AMP_OP_SET_ONCE).getInt("b"));
+        assertEquals(3.5, properties.getJSONObject(Constants.AMP_OP_ADD).getDouble("c"), 0);
+        assertEquals(1, properties.getJSONObject(Constants.AMP_OP_UNSET).length());
+        assertFalse(properties.getJSONObject(Constants.AMP_OP_SET).has("e"));
+
+        // the inputs are left as they were
+        assertEquals(1, first.getJSONObject("properties").getJSONObject(Constants.AMP_OP_SET).getInt("a"));
+    }
+
+    @Test
+    public void testMergeBarriers() throws JSONException {
+        JSONObject set = identify(1, "user", new Identify().set("a", 1));
+        assertNull(IdentifyCoalescer.merge(set, identify(2, "user", new Identify().clearAll())));
+        assertNull(IdentifyCoalescer.merge(identify(1, "user", new Identify().clearAll()), set));
+        assertNull(IdentifyCoalescer.merge(set, identify(2, "other", new Identify().set("a", 2))));
+        assertNull(IdentifyCoalescer.merge(set, identify(2, "user", new Identify().add("a", 2))));
+        assertNull(IdentifyCoalescer.merge(set, identify(2, "user", new Identify().append("a", 2))));
+        assertNull(IdentifyCoalescer.merge(
+                identify(1, "user", new Identify().add("a", 1)),
+                identify(2, "user", new Identify().add("a", "2"))));
+    }
+
+    @Test
+    public void testCoalesce() throws JSONException {
+        String event = "{\"event_id\":1,\"properties\":{},\"collection\":\"test\"}";
+        String identify1 = serialize(identify(1, "user", new Identify().add("karma", 1)));
+        String identify2 = serialize(identify(2, "user", new Identify().add("karma", 2)));
+        String identify3 = serialize(identify(3, "user", new Identify().set("karma", 0)));
+        String clearAll = serialize(identify(4, "user", new Identify().clearAll()));
+
+        List<String> batch = Arrays.asList(identify1, event, identify2);
+        assertSame(batch, IdentifyCoalescer.coalesce(batch));
+
+        List<String> coalesced = IdentifyCoalescer.coalesce(
+                Arrays.asList(event, identify1, identify2, identify3, clearAll, identify1));
+        assertEquals(4, coalesced.size());
+        assertEquals(event, coalesced.get(0));
+        JSONObject merged = new JSONObject(coalesced.get(1));
+        assertEquals(3, merged.getLong("event_id"));
+        JSONObject properties = merged.getJSONObject("properties");
+        assertEquals(0, properties.getJSONObject(Constants.AMP_OP_SET).getInt("karma"));
+        assertFalse(properties.has(Constants.AMP_OP_ADD));
+        assertEquals(clearAll, coalesced.get(2));
+        assertEquals(identify1, coalesced.get(3));
+    }
+}
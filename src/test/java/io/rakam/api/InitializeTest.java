@@ -5,6 +5,7 @@ import android.content.SharedPreferences;
 
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -23,6 +24,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
@@ -391,4 +393,75 @@ public class InitializeTest extends BaseTest {
         );
         assertEquals(deviceId, sharedPrefsDeviceId);
     }
+
+    @Test
+    public void testInitializeSegmentLogEventStore() throws MalformedURLException, JSONException {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        dbHelper.insertOrReplaceKeyValue(RakamClient.DEVICE_ID_KEY, "testDeviceId");
+        dbHelper.insertOrReplaceKeyValue(RakamClient.USER_ID_KEY, "testUserId");
+        dbHelper.addEvent("{\"collection\":\"unsent_event\"}");
+
+        ShadowLooper looper = ((ShadowLooper) ShadowExtractor.extract(rakam.logThread.getLooper()));
+        rakam.enableSegmentLogEventStore(true);
+        rakam.initialize(context, server.url("/").url(), apiKey);
+        looper.runToEndOfTasks();
+
+        // metadata and unsent events are moved over from the database
+        EventStore eventStore = rakam.getEventStore();
+        assertTrue(eventStore instanceof SegmentLogEventStore);
+        assertEquals("testDeviceId", rakam.getDeviceId());
+        assertEquals("testUserId", rakam.userId);
+        assertEquals(0, dbHelper.getEventCount());
+        assertEquals(1, eventStore.getEventCount());
+        assertEquals(1, (long) eventStore.getLongValue(RakamClient.LAST_EVENT_ID_KEY));
+
+        rakam.logEvent("test_event");
+        looper.runToEndOfTasks();
+        assertEquals(0, dbHelper.getEventCount());
+        assertEquals(2, eventStore.getEventCount());
+        assertEquals("test_event", new JSONObject(
+                eventStore.getRawEvents(1, -1, -1).get(0).second).getString("collection"));
+    }
+
+    @Test
+    public void testInitializeSegmentLogEventStoreAfterInterruptedMigration() throws JSONException {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        dbHelper.insertOrReplaceKeyValue(RakamClient.DEVICE_ID_KEY, "testDeviceId");
+        dbHelper.addEvent("{\"collection\":\"unsent_event\"}");
+
+        // an earlier migration copied the event but never finished
+        SegmentLogEventStore store = SegmentLogEventStore.getEventStore(context, null);
+        store.addEvent("{\"collection\":\"unsent_event\"}");
+
+        ShadowLooper looper = ((ShadowLooper) ShadowExtractor.extract(rakam.logThread.getLooper()));
+        rakam.enableSegmentLogEventStore(true);
+        rakam.initialize(context, server.url("/").url(), apiKey);
+        looper.runToEndOfTasks();
+
+        // the copy is redone, not duplicated
+        assertSame(store, rakam.getEventStore());
+        assertEquals("testDeviceId", rakam.getDeviceId());
+        assertEquals(0, dbHelper.getEventCount());
+        assertEquals(1, store.getEventCount());
+        assertEquals(1, (long) store.getLongValue(RakamClient.EVENT_STORE_MIGRATED_KEY));
+        assertEquals("unsent_event", new JSONObject(
+                store.getRawEvents(-1, -1, -1).get(0).second).getString("collection"));
+    }
+
+    @Test
+    public void testInitializeSegmentLogEventStoreKeepsMigratedEvents() throws JSONException {
+        // moved over before the migrated marker existed, the database is already empty
+        SegmentLogEventStore store = SegmentLogEventStore.getEventStore(context, null);
+        store.insertOrReplaceKeyValue(RakamClient.DEVICE_ID_KEY, "testDeviceId");
+        store.addEvent("{\"collection\":\"unsent_event\"}");
+
+        ShadowLooper looper = ((ShadowLooper) ShadowExtractor.extract(rakam.logThread.getLooper()));
+        rakam.enableSegmentLogEventStore(true);
+        rakam.initialize(context, server.url("/").url(), apiKey);
+        looper.runToEndOfTasks();
+
+        assertEquals("testDeviceId", rakam.getDeviceId());
+        assertEquals(1, store.getEventCount());
+        assertEquals(1, (long) store.getLongValue(RakamClient.EVENT_STORE_MIGRATED_KEY));
+    }
 }
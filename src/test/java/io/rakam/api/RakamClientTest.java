@@ -31,6 +31,8 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.GzipSource;
+import okio.Okio;
 
 import static io.rakam.api.Constants.*;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -39,6 +41,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -119,6 +122,28 @@ public class RakamClientTest extends BaseTest {
         assertEquals(event2.optJSONObject("properties").optString("_user"), userId2);
     }
 
+    @Test
+    public void testIdentifyKeepsOrderWithSetUserId() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setUserId("user_id1");
+        looper.runToEndOfTasks();
+
+        // identifys are queued on the logThread in order with the user id change
+        rakam.identify(new Identify().set("step", 1));
+        rakam.setUserId("user_id2");
+        rakam.identify(new Identify().set("step", 2));
+        looper.runToEndOfTasks();
+
+        assertEquals(getUnsentIdentifyCount(), 2);
+        JSONArray identifys = getUnsentIdentifys(2);
+        JSONObject first = identifys.optJSONObject(0).optJSONObject("properties");
+        assertEquals(first.optJSONObject(AMP_OP_SET).optInt("step"), 1);
+        assertEquals(first.optString("_user"), "user_id1");
+        JSONObject second = identifys.optJSONObject(1).optJSONObject("properties");
+        assertEquals(second.optJSONObject(AMP_OP_SET).optInt("step"), 2);
+        assertEquals(second.optString("_user"), "user_id2");
+    }
+
     @Test
     public void testSetDeviceId() {
         DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
@@ -484,6 +509,34 @@ public class RakamClientTest extends BaseTest {
         assertEquals(getUnsentIdentifyCount(), 0);
     }
 
+    @Test
+    public void testCoalesceIdentifys() throws JSONException {
+        rakam.setCoalesceIdentifys(true);
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.identify(new Identify().set("photo_count", 1).add("karma", 1));
+        rakam.identify(new Identify().add("karma", 2));
+        rakam.clearUserProperties();
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentIdentifyCount(), 3);
+
+        RecordedRequest request = runRequest(rakam);
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(events.length(), 2);
+        JSONObject merged = events.getJSONObject(0).getJSONObject("properties");
+        assertEquals(merged.getJSONObject(AMP_OP_SET).getInt("photo_count"), 1);
+        assertEquals(merged.getJSONObject(AMP_OP_ADD).getInt("karma"), 3);
+        assertEquals(events.getJSONObject(0).getLong("event_id"), 2);
+        assertTrue(events.getJSONObject(1).getJSONObject("properties").has(Constants.AMP_OP_CLEAR_ALL));
+
+        // all the merged rows are removed
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentIdentifyCount(), 0);
+    }
+
     // The ordering doesn't matter for us.
     @Ignore
     @Test
@@ -921,6 +974,305 @@ public class RakamClientTest extends BaseTest {
         assertEquals(dbHelper.getTotalEventCount(), 1);
     }
 
+    @Test
+    public void testCompressedUpload() throws JSONException, IOException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setCompressUploads(true);
+        rakam.logEvent("test_event");
+        rakam.uploadEvents();
+        looper.runToEndOfTasks();
+
+        RecordedRequest request = runRequest(rakam);
+        assertEquals(request.getHeader("Content-Encoding"), "gzip");
+        String body = Okio.buffer(new GzipSource(request.getBody())).readUtf8();
+        JSONArray events = parseRequest(body).getJSONArray("events");
+        assertEquals(events.getJSONObject(events.length() - 1).optString("collection"), "test_event");
+    }
+
+    @Test
+    public void testCompressedUploadRejected() throws JSONException, InterruptedException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setCompressUploads(true);
+        rakam.logEvent("test_event");
+        rakam.uploadEvents();
+        looper.runToEndOfTasks();
+
+        // server does not understand gzip, batch is resent uncompressed
+        server.enqueue(new MockResponse().setResponseCode(415));
+        server.enqueue(new MockResponse().setBody("1"));
+        ShadowLooper httpLooper = Shadows.shadowOf(rakam.httpThread.getLooper());
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        RecordedRequest rejected = server.takeRequest(1, SECONDS);
+        assertEquals(rejected.getHeader("Content-Encoding"), "gzip");
+        RecordedRequest request = server.takeRequest(1, SECONDS);
+        assertNull(request.getHeader("Content-Encoding"));
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(events.getJSONObject(events.length() - 1).optString("collection"), "test_event");
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testCompressedUploadEncodingRejected() throws JSONException, InterruptedException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setCompressUploads(true);
+        rakam.logEvent("test_event");
+        rakam.uploadEvents();
+        looper.runToEndOfTasks();
+
+        // a 400 naming the encoding turns compression off
+        server.enqueue(new MockResponse().setResponseCode(400).setBody("Unsupported Content-Encoding: gzip"));
+        server.enqueue(new MockResponse().setBody("1"));
+        ShadowLooper httpLooper = Shadows.shadowOf(rakam.httpThread.getLooper());
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        RecordedRequest rejected = server.takeRequest(1, SECONDS);
+        assertEquals(rejected.getHeader("Content-Encoding"), "gzip");
+        RecordedRequest request = server.takeRequest(1, SECONDS);
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testCompressedUploadTooLarge() throws JSONException, InterruptedException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setCompressUploads(true);
+        rakam.logEvent("test_event");
+        rakam.uploadEvents();
+        looper.runToEndOfTasks();
+
+        // any other 400 backs off the batch size and keeps compressing
+        server.enqueue(new MockResponse().setResponseCode(400));
+        server.enqueue(new MockResponse().setBody("1"));
+        ShadowLooper httpLooper = Shadows.shadowOf(rakam.httpThread.getLooper());
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        RecordedRequest rejected = server.takeRequest(1, SECONDS);
+        assertEquals(rejected.getHeader("Content-Encoding"), "gzip");
+        RecordedRequest request = server.takeRequest(1, SECONDS);
+        assertEquals(request.getHeader("Content-Encoding"), "gzip");
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testNetworkFailureBackoff() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(rakam.httpThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.logEvent("test_event");
+        rakam.uploadEvents();
+        looper.runOneTask();
+        server.enqueue(new MockResponse().setResponseCode(500));
+        httpLooper.runToEndOfTasks();
+        looper.runOneTask(); // failures are handled on the logThread
+        assertEquals(server.getRequestCount(), 1);
+        assertEquals(rakam.uploadScheduler.getFailures(), 1);
+
+        // uploads wait for the scheduled retry
+        rakam.uploadEvents();
+        looper.runOneTask();
+        httpLooper.runToEndOfTasks();
+        assertEquals(server.getRequestCount(), 1);
+
+        server.enqueue(new MockResponse().setBody("1"));
+        looper.idle(Constants.UPLOAD_RETRY_BASE_MILLIS);
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(server.getRequestCount(), 2);
+        assertEquals(rakam.uploadScheduler.getFailures(), 0);
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testUploadWindowFailureWhileAcknowledging() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        rakam.setUploadWindowSize(2).setOffline(true);
+        for (int i = 1; i <= 4; i++) {
+            rakam.logEvent("test" + i);
+        }
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 4);
+
+        // two batches in flight, the first fails while the second is acknowledged
+        rakam.uploadingCurrently.set(true);
+        final UploadWindow.Batch failed = rakam.uploadWindow.dispatch(2, -1, 2, 0);
+        final UploadWindow.Batch acknowledged = rakam.uploadWindow.dispatch(4, -1, 2, 0);
+        rakam.setOffline(false);
+        rakam.onUploadFailed(failed, RakamClient.UPLOAD_RETRY);
+        rakam.logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                rakam.onUploadAcknowledged(acknowledged);
+            }
+        });
+
+        // nothing changes until the logThread gets to the failure
+        assertTrue(rakam.uploadWindow.canDispatch());
+        assertEquals(getUnsentEventCount(), 4);
+        looper.runToEndOfTasks();
+
+        // only the acknowledged batch is removed, the failed one is resent from the start
+        assertEquals(getUnsentEventCount(), 2);
+        JSONArray events = getUnsentEvents(2);
+        assertEquals(events.optJSONObject(0).optString("collection"), "test1");
+        assertEquals(events.optJSONObject(1).optString("collection"), "test2");
+        assertTrue(rakam.uploadingCurrently.get());
+        assertEquals(rakam.uploadWindow.getDispatchedEventId(), 2);
+        assertEquals(rakam.uploadWindow.getEventCount(), 2);
+    }
+
+    @Test
+    public void testEventWriteBuffer() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        rakam.setEventWriteBufferSize(3);
+
+        // events stay in memory until the buffer is full
+        rakam.logEvent("test1");
+        rakam.logEvent("test2");
+        assertEquals(dbHelper.getEventCount(), 0);
+        assertEquals(rakam.pendingEventWrites.size(), 2);
+
+        // filling the buffer writes everything in logged order
+        rakam.logEvent("test3");
+        assertEquals(rakam.pendingEventWrites.size(), 0);
+        assertEquals(dbHelper.getEventCount(), 3);
+        assertEquals(rakam.lastEventId, 3);
+        assertEquals(getUnsentEvents(3).getJSONObject(0).optString("collection"), "test1");
+        assertEquals(getUnsentEvents(3).getJSONObject(2).optString("collection"), "test3");
+
+        // uploading forces a flush so buffered events are part of the batch
+        rakam.logEvent("test4");
+        assertEquals(dbHelper.getEventCount(), 3);
+        rakam.uploadEvents();
+        looper.runOneTask();
+        assertEquals(dbHelper.getEventCount(), 4);
+
+        RecordedRequest request = runRequest(rakam);
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(events.length(), 4);
+        assertEquals(events.getJSONObject(3).optString("collection"), "test4");
+    }
+
+    @Test
+    public void testEventWriteBufferDefersLastEventTime() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        Long storedLastEventTime = dbHelper.getLongValue(RakamClient.LAST_EVENT_TIME_KEY);
+        rakam.setEventWriteBufferSize(3);
+
+        // buffered events do not commit the last event time one by one
+        rakam.logEvent("test1");
+        rakam.logEvent("test2");
+        assertTrue(rakam.lastEventTime > 0);
+        assertEquals(storedLastEventTime, dbHelper.getLongValue(RakamClient.LAST_EVENT_TIME_KEY));
+
+        // it is written along with the buffer
+        rakam.logEvent("test3");
+        assertEquals(rakam.lastEventTime, (long) dbHelper.getLongValue(RakamClient.LAST_EVENT_TIME_KEY));
+
+        // buffered events have no ids yet to hand out as _local_id
+        JSONArray events = getUnsentEvents(3);
+        for (int i = 0; i < events.length(); i++) {
+            assertFalse(events.getJSONObject(i).getJSONObject("properties").has("_local_id"));
+        }
+    }
+
+    @Test
+    public void testEventWriteBufferFlushedAfterLatencyBound() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setEventWriteBufferSize(10);
+        rakam.setEventWriteBufferMillis(500);
+        rakam.logEvent("test1");
+        rakam.logEvent("test2");
+        assertEquals(getUnsentEventCount(), 0);
+
+        looper.idle(500);
+        assertEquals(getUnsentEventCount(), 2);
+    }
+
+    @Test
+    public void testEventWriteBufferFlushedOnExitForeground() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setEventWriteBufferSize(10);
+        rakam.setFlushEventsOnClose(false);
+        rakam.logEvent("test1");
+        rakam.logEvent("test2");
+        assertEquals(getUnsentEventCount(), 0);
+
+        rakam.onExitForeground(clock.currentTimeMillis());
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 2);
+    }
+
+    @Test
+    public void testAggregatesFlushedOnExitForeground() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        rakam.setFlushEventsOnClose(false);
+        JSONObject dimensions = new JSONObject().put("screen", "home");
+        for (int i = 0; i < 100; i++) {
+            rakam.incrementCounter("frame_drop", dimensions, 2);
+        }
+        rakam.recordGauge("memory", null, 3.5);
+        rakam.recordGauge("memory", null, 1.5);
+        assertEquals(getUnsentEventCount(), 0);
+
+        rakam.onExitForeground(clock.currentTimeMillis());
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 2);
+
+        JSONArray events = getUnsentEvents(2);
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            JSONObject properties = event.getJSONObject("properties");
+            if (event.getString("collection").equals("frame_drop")) {
+                assertEquals("counter", properties.getString("_aggregation"));
+                assertEquals("home", properties.getString("screen"));
+                assertEquals(100, properties.getLong("_count"));
+                assertEquals(200, properties.getLong("_sum"));
+            } else {
+                assertEquals("memory", event.getString("collection"));
+                assertEquals("gauge", properties.getString("_aggregation"));
+                assertEquals(1.5, properties.getDouble("_min"), 0);
+                assertEquals(1.5, properties.getDouble("_last"), 0);
+            }
+        }
+
+        // drained
+        rakam.onExitForeground(clock.currentTimeMillis());
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 2);
+    }
+
     @Test
     public void testBackoffRemoveIdentify() {
         long [] timestamps = {1, 1, 2, 3, 4, 5};
@@ -972,6 +1324,150 @@ public class RakamClientTest extends BaseTest {
         assertFalse(apiProperties.has("_android_adid"));
     }
 
+    @Test
+    public void testDeviceContextRefreshedOnTrackingOptionsChange() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        TrackingOptions options = new TrackingOptions();
+        rakam.setTrackingOptions(options);
+        rakam.logEvent("test1");
+        looper.runToEndOfTasks();
+        JSONObject properties = getLastUnsentEvent().optJSONObject("properties");
+        assertTrue(properties.has("_os_name"));
+        assertTrue(properties.has("_carrier"));
+
+        // disabling a field on the options already in use applies to the next event
+        options.disableCarrier();
+        rakam.logEvent("test2");
+        looper.runToEndOfTasks();
+        properties = getLastUnsentEvent().optJSONObject("properties");
+        assertTrue(properties.has("_os_name"));
+        assertFalse(properties.has("_carrier"));
+
+        rakam.setTrackingOptions(new TrackingOptions().disableOsName());
+        rakam.logEvent("test3");
+        looper.runToEndOfTasks();
+        properties = getLastUnsentEvent().optJSONObject("properties");
+        assertFalse(properties.has("_os_name"));
+        assertTrue(properties.has("_carrier"));
+    }
+
+    @Test
+    public void testLogEventBuilder() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setSuperProperties(new JSONObject().put("super", "value"));
+        EventBuilder builder = EventBuilder.obtain("test")
+                .putLong("count", 3)
+                .putDouble("ratio", 0.5)
+                .putBoolean("flag", true)
+                .putString("name", "value");
+        rakam.logEvent(builder);
+        looper.runToEndOfTasks();
+
+        JSONObject event = getLastUnsentEvent();
+        assertEquals("test", event.optString("collection"));
+        JSONObject properties = event.optJSONObject("properties");
+        assertEquals(3, properties.optLong("count"));
+        assertEquals(0.5, properties.optDouble("ratio"), 0);
+        assertTrue(properties.optBoolean("flag"));
+        assertEquals("value", properties.optString("name"));
+        assertEquals("value", properties.optString("super"));
+        assertTrue(properties.has("_session_id"));
+
+        // the builder went back to the pool, empty
+        EventBuilder recycled = EventBuilder.obtain("test2");
+        assertSame(builder, recycled);
+        assertEquals(0, recycled.size());
+    }
+
+    @Test
+    public void testEventSampling() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        double point = EventSampler.point(rakam.getDeviceId());
+
+        rakam.setEventSampleRate("dropped", point);
+        rakam.setEventSampleRate("kept", Math.nextUp(point));
+        rakam.setEventSampleRate("invalid", 2);
+        assertEquals(1, rakam.getEventSampleRate("invalid"), 0);
+
+        rakam.logEvent("dropped");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+
+        rakam.logEvent("kept");
+        looper.runToEndOfTasks();
+        JSONObject properties = getLastUnsentEvent().optJSONObject("properties");
+        assertEquals(Math.nextUp(point), properties.optDouble("_sample_rate"), 0);
+
+        rakam.logEvent("test");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 2);
+        assertFalse(getLastUnsentEvent().optJSONObject("properties").has("_sample_rate"));
+    }
+
+    @Test
+    public void testEventMaxBytes() {
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        rakam.setEventMaxCount(20).setOffline(true);
+        assertEquals(-1, rakam.getEventMaxBytes());
+
+        for (int i = 0; i < 10; i++) {
+            rakam.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        long bytes = rakam.getEventStorageBytes();
+        assertTrue(bytes > 0);
+
+        // going over the budget drops the oldest events until the rest fits
+        rakam.setEventMaxBytes(bytes / 2);
+        rakam.logEvent("last");
+        looper.runToEndOfTasks();
+        assertTrue(rakam.getEventStorageBytes() <= bytes / 2);
+        long count = getUnsentEventCount();
+        assertTrue(count > 0 && count < 10);
+        assertEquals(getLastUnsentEvent().optString("collection"), "last");
+    }
+
+    @Test
+    public void testEventPriorities() {
+        int eventMaxCount = 10;
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        rakam.setEventMaxCount(eventMaxCount).setOffline(true);
+        rakam.setEventEvictionPolicy(EventEvictionPolicy.dropNewest());
+        rakam.setEventPriority("scroll", EventPriority.BULK);
+        rakam.setEventPriority("invalid", 5);
+        assertEquals(EventPriority.NORMAL, rakam.getEventPriority("invalid"));
+        assertEquals(EventPriority.CRITICAL, rakam.getEventPriority(Constants.REVENUE_EVENT));
+
+        for (int i = 0; i < eventMaxCount; i++) {
+            rakam.logEvent("scroll");
+        }
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), eventMaxCount);
+
+        // a full queue does not drop critical events, bulk events make room for them
+        rakam.logRevenue(new Revenue().setPrice(9.99));
+        rakam.setEventEvictionPolicy(EventEvictionPolicy.dropOldest());
+        for (int i = 0; i < eventMaxCount; i++) {
+            rakam.logEvent("scroll");
+        }
+        rakam.logEvent("signup");
+        looper.runToEndOfTasks();
+        JSONArray events = getUnsentEvents(eventMaxCount);
+        assertEquals(events.optJSONObject(0).optString("collection"), Constants.REVENUE_EVENT);
+        assertEquals(events.optJSONObject(events.length() - 1).optString("collection"), "signup");
+
+        // bulk events over their own max count are dropped oldest first
+        rakam.setEventMaxCount(EventPriority.BULK, 2);
+        rakam.logEvent("scroll");
+        looper.runToEndOfTasks();
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        assertEquals(2, dbHelper.getEventCount(EventPriority.BULK));
+        assertEquals(1, dbHelper.getEventCount(EventPriority.CRITICAL));
+    }
+
     @Test
     public void testTruncateString() {
         String longString = generateStringWithLength(Constants.MAX_STRING_LENGTH * 2, 'c');
@@ -1149,6 +1645,73 @@ public class RakamClientTest extends BaseTest {
         assertEquals(event.optString("collection"), "test2");
     }
 
+    @Test
+    public void testEvictionPolicyDropNewest() {
+        int eventMaxCount = 2;
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setEventMaxCount(eventMaxCount).setOffline(true);
+        rakam.setEventEvictionPolicy(EventEvictionPolicy.dropNewest());
+
+        rakam.logEvent("test1");
+        rakam.logEvent("test2");
+        rakam.logEvent("test3");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), eventMaxCount);
+        assertEquals(getLastUnsentEvent().optString("collection"), "test2");
+
+        // the cap also counts events waiting in the write buffer
+        DatabaseHelper.getDatabaseHelper(context).removeEvent(1);
+        rakam.setEventWriteBufferSize(10);
+        rakam.logEvent("test4");
+        rakam.logEvent("test5");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), eventMaxCount);
+        assertEquals(getLastUnsentEvent().optString("collection"), "test4");
+    }
+
+    @Test
+    public void testEvictionPolicyDropTypes() {
+        int eventMaxCount = 2;
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setEventMaxCount(eventMaxCount).setOffline(true);
+        rakam.setEventEvictionPolicy(EventEvictionPolicy.dropTypes("scroll"));
+
+        rakam.logEvent("scroll");
+        rakam.logEvent("purchase");
+        rakam.logEvent("scroll");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), eventMaxCount);
+        assertEquals(getLastUnsentEvent().optString("collection"), "purchase");
+
+        // other event types still make room by dropping the oldest events
+        rakam.logEvent("signup");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), eventMaxCount);
+        JSONArray events = getUnsentEvents(2);
+        assertEquals(events.optJSONObject(0).optString("collection"), "purchase");
+        assertEquals(events.optJSONObject(1).optString("collection"), "signup");
+    }
+
+    @Test
+    public void testEvictionPolicyDropsIdentifys() {
+        int eventMaxCount = 2;
+        ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        rakam.setEventMaxCount(eventMaxCount).setOffline(true);
+        rakam.setEventEvictionPolicy(EventEvictionPolicy.dropTypes(Constants.IDENTIFY_EVENT));
+
+        // identifys are critical, but the policy still drops new ones once their queue is full
+        rakam.identify(new Identify().set("step", 1));
+        rakam.identify(new Identify().set("step", 2));
+        rakam.identify(new Identify().set("step", 3));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentIdentifyCount(), eventMaxCount);
+        JSONArray identifys = getUnsentIdentifys(2);
+        assertEquals(identifys.optJSONObject(0).optJSONObject("properties")
+                .optJSONObject(AMP_OP_SET).optInt("step"), 1);
+        assertEquals(identifys.optJSONObject(1).optJSONObject("properties")
+                .optJSONObject(AMP_OP_SET).optInt("step"), 2);
+    }
+
     @Test
     public void testClearUserProperties() {
         ShadowLooper looper = Shadows.shadowOf(rakam.logThread.getLooper());
@@ -0,0 +1,229 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class SegmentLogEventStoreTest extends EventStoreTest {
+
+    private File directory;
+    private SegmentLogEventStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        directory = SegmentLogEventStore.getDirectory(context, null);
+        store = new SegmentLogEventStore(directory);
+        eventStore = store;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private SegmentLogEventStore reopen() throws IOException {
+        store = new SegmentLogEventStore(directory);
+        eventStore = store;
+        return store;
+    }
+
+    private File[] segments(String log) {
+        File[] files = new File(directory, log).listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    private String largeEvent(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'a');
+        return "{\"collection\":\"" + new String(chars) + "\"}";
+    }
+
+    @Test
+    public void testAddAndRead() throws JSONException {
+        assertTrue(store.isEmpty());
+        assertEquals(1, store.addEvent("{\"collection\":\"test1\"}"));
+        assertEquals(2, store.addEvent(null));
+        assertEquals(3, store.addEvent("{}"));
+        assertEquals(1, store.addIdentify("{\"collection\":\"$identify\"}"));
+        assertEquals(3, store.getEventCount());
+        assertEquals(1, store.getIdentifyCount());
+        assertEquals(4, store.getTotalEventCount());
+
+        // empty events are skipped, like NULL rows in the database
+        List<Pair<Long, String>> events = store.getRawEvents(-1, -1, -1);
+        assertEquals(2, events.size());
+        assertEquals("{\"event_id\":1,\"collection\":\"test1\"}", events.get(0).second);
+        assertEquals("{\"event_id\":3}", events.get(1).second);
+
+        assertEquals(1, store.getRawEvents(1, -1, -1).size());
+        assertEquals(1, store.getRawEvents(-1, 2, -1).size());
+        assertEquals(1, store.getRawEvents(-1, -1, 1).size());
+        assertEquals(1, (long) store.getRawIdentifys(-1, -1, -1).get(0).first);
+
+        List<Pair<String, String>> batch = new ArrayList<Pair<String, String>>();
+        batch.add(new Pair<String, String>(DatabaseHelper.EVENT_TABLE_NAME, "{}"));
+        batch.add(new Pair<String, String>(DatabaseHelper.IDENTIFY_TABLE_NAME, "{}"));
+        batch.add(new Pair<String, String>(DatabaseHelper.EVENT_TABLE_NAME, "{}"));
+        Pair<Long, Long> lastIds = store.addEventsAndIdentifys(batch);
+        assertEquals(5, (long) lastIds.first);
+        assertEquals(2, (long) lastIds.second);
+    }
+
+    @Test
+    public void testRemove() throws JSONException {
+        for (int i = 1; i <= 10; i++) {
+            store.addEvent("{\"collection\":\"test" + i + "\"}");
+            store.addIdentify("{}");
+        }
+
+        store.removeEvents(2);
+        store.removeEvent(4);
+        store.removeEventRange(5, 7);
+        assertEquals(5, store.getEventCount());
+        assertEquals(3, store.removeOldestEvents(3));
+        List<Pair<Long, String>> events = store.getRawEvents(-1, -1, -1);
+        assertEquals(2, events.size());
+        assertEquals(9, (long) events.get(0).first);
+
+        store.removeIdentifys(5);
+        store.removeIdentify(6);
+        store.removeIdentifyRange(6, 8);
+        assertEquals(2, store.getIdentifyCount());
+        assertEquals(2, store.removeOldestIdentifys(5));
+        assertEquals(0, store.getIdentifyCount());
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        assertEquals(1, store.insertOrReplaceKeyValue("key", "value1"));
+        store.insertOrReplaceKeyValue("key", "value2");
+        store.insertOrReplaceKeyLongValue("key", 5L);
+        assertEquals("value2", store.getValue("key"));
+        assertEquals(5L, (long) store.getLongValue("key"));
+
+        store.insertOrReplaceKeyValue("removed", "value");
+        store.insertOrReplaceKeyValue("removed", null);
+        assertNull(store.getValue("removed"));
+        assertNull(store.getValue("missing"));
+        assertNull(store.getLongValue("missing"));
+
+        reopen();
+        assertEquals("value2", store.getValue("key"));
+        assertEquals(5L, (long) store.getLongValue("key"));
+        assertNull(store.getValue("removed"));
+    }
+
+    @Test
+    public void testBytes() throws IOException {
+        store.addEvent("{\"collection\":\"test1\"}");
+        store.addEvent("{\"collection\":\"caf\u00e9\"}");
+        store.addIdentify("{}");
+        assertEquals(22 + 22, store.getEventBytes());
+        assertEquals(2, store.getIdentifyBytes());
+
+        store.removeEvents(1);
+        assertEquals(22, store.getEventBytes());
+        reopen();
+        assertEquals(22, store.getEventBytes());
+        assertEquals(2, store.getIdentifyBytes());
+    }
+
+    @Test
+    public void testReopen() throws IOException, JSONException {
+        store.addEvent("{\"collection\":\"test1\"}");
+        store.addEvent("{\"collection\":\"test2\"}");
+        store.addEvent("{\"collection\":\"test3\"}");
+        store.removeEvents(1);
+
+        reopen();
+        assertEquals(2, store.getEventCount());
+        assertEquals(2, (long) store.getRawEvents(-1, -1, -1).get(0).first);
+
+        // ids keep increasing, even once every event has been removed
+        store.removeEvents(3);
+        reopen();
+        assertEquals(0, store.getEventCount());
+        assertEquals(4, store.addEvent("{}"));
+    }
+
+    @Test
+    public void testRecoverTornRecord() throws IOException, JSONException {
+        store.addEvent("{\"collection\":\"test1\"}");
+        store.addEvent("{\"collection\":\"test2\"}");
+
+        // corrupt the last byte of the second record, as if the write was cut off
+        File segment = segments(DatabaseHelper.EVENT_TABLE_NAME)[0];
+        int end = 2 * SegmentLog.HEADER_BYTES + 2 * "{\"collection\":\"test1\"}".length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(end - 1);
+        file.write('x');
+        file.close();
+
+        reopen();
+        assertEquals(1, store.getEventCount());
+        assertEquals(2, store.addEvent("{\"collection\":\"test3\"}"));
+        reopen();
+        List<Pair<Long, String>> events = store.getRawEvents(-1, -1, -1);
+        assertEquals(2, events.size());
+        assertEquals("test3", new JSONObject(events.get(1).second).getString("collection"));
+    }
+
+    @Test
+    public void testSegmentsDeletedOnceRemoved() throws IOException, JSONException {
+        String event = largeEvent(Constants.EVENT_LOG_SEGMENT_BYTES / 3);
+        for (int i = 0; i < 4; i++) {
+            store.addEvent(event);
+        }
+        assertEquals(2, segments(DatabaseHelper.EVENT_TABLE_NAME).length);
+
+        store.removeEvent(1);
+        assertEquals(2, segments(DatabaseHelper.EVENT_TABLE_NAME).length);
+        store.removeOldestEvents(1);
+        assertEquals(1, segments(DatabaseHelper.EVENT_TABLE_NAME).length);
+
+        // an event larger than a segment gets a segment of its own
+        store.addEvent(largeEvent(Constants.EVENT_LOG_SEGMENT_BYTES));
+        reopen();
+        assertEquals(3, store.getEventCount());
+        assertEquals(2, segments(DatabaseHelper.EVENT_TABLE_NAME).length);
+        store.removeOldestEvents(2);
+        assertEquals(1, segments(DatabaseHelper.EVENT_TABLE_NAME).length);
+        assertEquals(5, (long) store.getRawEvents(-1, -1, -1).get(0).first);
+    }
+
+    @Test
+    public void testMetadataCompaction() throws IOException {
+        store.insertOrReplaceKeyValue("device_id", "test_device_id");
+        for (long i = 0; i < Constants.EVENT_LOG_METADATA_SEGMENT_BYTES / 10; i++) {
+            store.insertOrReplaceKeyLongValue("last_event_time", i);
+        }
+        assertTrue(segments(DatabaseHelper.STORE_TABLE_NAME).length <= 2);
+
+        reopen();
+        assertEquals("test_device_id", store.getValue("device_id"));
+        assertEquals(Constants.EVENT_LOG_METADATA_SEGMENT_BYTES / 10 - 1,
+                (long) store.getLongValue("last_event_time"));
+    }
+}
@@ -0,0 +1,63 @@
+package io.rakam.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadBatchSizerTest {
+
+    private UploadBatchSizer newSizer(long batchBytes) {
+        return new UploadBatchSizer(1000, 10000, 500, 1000, batchBytes);
+    }
+
+    @Test
+    public void testAdditiveIncrease() {
+        UploadBatchSizer sizer = newSizer(4000);
+
+        // batches well below the limit say nothing about the limit
+        assertFalse(sizer.onSuccess(1000, 100));
+        assertEquals(sizer.getBatchBytes(), 4000);
+
+        assertTrue(sizer.onSuccess(3000, 100));
+        assertEquals(sizer.getBatchBytes(), 4500);
+
+        sizer.setBatchBytes(9800);
+        sizer.onSuccess(9800, 100);
+        assertEquals(sizer.getBatchBytes(), 10000);
+    }
+
+    @Test
+    public void testDecreaseOnSlowUpload() {
+        UploadBatchSizer sizer = newSizer(8000);
+
+        // 8000 bytes in 4s, the target latency fits 2000 bytes
+        assertTrue(sizer.onSuccess(8000, 4000));
+        assertEquals(sizer.getBatchBytes(), 2000);
+
+        // halve at least
+        sizer.setBatchBytes(8000);
+        sizer.onSuccess(8000, 1100);
+        assertEquals(sizer.getBatchBytes(), 4000);
+    }
+
+    @Test
+    public void testDecreaseOnTooLarge() {
+        UploadBatchSizer sizer = newSizer(8000);
+
+        assertTrue(sizer.onTooLarge(6000));
+        assertEquals(sizer.getBatchBytes(), 3000);
+
+        sizer.onTooLarge(3000);
+        sizer.onTooLarge(1500);
+        assertEquals(sizer.getBatchBytes(), 1000);
+        assertFalse(sizer.onTooLarge(1000));
+    }
+
+    @Test
+    public void testClamp() {
+        assertEquals(newSizer(0).getBatchBytes(), 1000);
+        assertEquals(newSizer(100000).getBatchBytes(), 10000);
+    }
+}
@@ -0,0 +1,116 @@
+package io.rakam.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class UploadSchedulerTest extends BaseTest {
+
+    private long now = 1000;
+    private int uploads = 0;
+    private UploadScheduler scheduler;
+    private ShadowLooper looper;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        looper = Shadows.shadowOf(rakam.logThread.getLooper());
+        looper.runToEndOfTasks();
+        scheduler = new UploadScheduler(rakam.logThread, new Runnable() {
+            @Override
+            public void run() {
+                uploads++;
+            }
+        }, 1000, 8000) {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testRetryDelays() {
+        for (int i = 0; i < 10; i++) {
+            long first = scheduler.getRetryDelayMillis(1);
+            assertTrue(first >= 500 && first <= 1000);
+            long third = scheduler.getRetryDelayMillis(3);
+            assertTrue(third >= 2000 && third <= 4000);
+            long capped = scheduler.getRetryDelayMillis(10);
+            assertTrue(capped >= 4000 && capped <= 8000);
+            capped = scheduler.getRetryDelayMillis(100);
+            assertTrue(capped >= 4000 && capped <= 8000);
+        }
+    }
+
+    @Test
+    public void testRetryAfterFailure() {
+        long delay = scheduler.onNetworkFailure();
+        assertTrue(scheduler.isBackingOff());
+        assertEquals(scheduler.getNextAttemptMillis(), now + delay);
+
+        looper.idle(delay - 1);
+        assertEquals(uploads, 0);
+        looper.idle(1);
+        assertEquals(uploads, 1);
+
+        // still failing, next retry waits longer
+        assertFalse(scheduler.isBackingOff());
+        long secondDelay = scheduler.onNetworkFailure();
+        assertEquals(scheduler.getFailures(), 2);
+        assertTrue(secondDelay >= 1000);
+    }
+
+    @Test
+    public void testBackoffEndsWithClock() {
+        long delay = scheduler.onNetworkFailure();
+        assertTrue(scheduler.isBackingOff());
+
+        // device slept through the handler delay
+        now += delay;
+        assertFalse(scheduler.isBackingOff());
+    }
+
+    @Test
+    public void testSuccessResetsBackoff() {
+        scheduler.onNetworkFailure();
+        scheduler.onNetworkFailure();
+        scheduler.onSuccess();
+        assertEquals(scheduler.getFailures(), 0);
+        assertFalse(scheduler.isBackingOff());
+
+        looper.idle(8000);
+        assertEquals(uploads, 0);
+    }
+
+    @Test
+    public void testConnectivityChanged() {
+        scheduler.onConnectivityChanged(false);
+        assertTrue(scheduler.isBackingOff());
+
+        // no retries while disconnected
+        scheduler.onNetworkFailure();
+        looper.idle(8000);
+        assertEquals(uploads, 0);
+
+        scheduler.onConnectivityChanged(true);
+        assertFalse(scheduler.isBackingOff());
+        assertEquals(scheduler.getFailures(), 0);
+        looper.runOneTask();
+        assertEquals(uploads, 1);
+    }
+}
@@ -0,0 +1,99 @@
+package io.rakam.api;
+
+import android.util.Pair;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest= Config.NONE)
+public class UploadWindowTest extends BaseTest {
+
+    private UploadWindow window;
+
+    @Before
+    public void setUp() throws Exception {
+        setUp(false);
+        window = new UploadWindow(3);
+    }
+
+    @After
+    public void tearDown() throws Exception {}
+
+    @Test
+    public void testDispatch() {
+        UploadWindow.Batch first = window.dispatch(2, 1, 3, 1000);
+        UploadWindow.Batch second = window.dispatch(-1, 3, 2, 1000);
+        assertEquals(first.afterEventId, -1);
+        assertEquals(second.afterEventId, 2);
+        assertEquals(second.afterIdentifyId, 1);
+        assertEquals(window.getDispatchedEventId(), 2);
+        assertEquals(window.getDispatchedIdentifyId(), 3);
+        assertEquals(window.getEventCount(), 5);
+        assertTrue(window.canDispatch());
+
+        window.dispatch(5, -1, 3, 1000);
+        assertFalse(window.canDispatch());
+    }
+
+    @Test
+    public void testAcknowledgeContiguousPrefix() {
+        UploadWindow.Batch first = window.dispatch(2, -1, 2, 1000);
+        UploadWindow.Batch second = window.dispatch(4, 1, 3, 1000);
+        UploadWindow.Batch third = window.dispatch(-1, 2, 1, 1000);
+
+        // nothing can be removed while the first batch is in flight
+        Pair<Long, Long> removed = window.acknowledge(second);
+        assertEquals((long) removed.first, -1);
+        assertEquals((long) removed.second, -1);
+        assertNull(window.release());
+
+        removed = window.acknowledge(first);
+        assertEquals((long) removed.first, 4);
+        assertEquals((long) removed.second, 1);
+        assertEquals(window.getEventCount(), 1);
+
+        removed = window.acknowledge(third);
+        assertEquals((long) removed.first, -1);
+        assertEquals((long) removed.second, 2);
+        assertTrue(window.isEmpty());
+        assertTrue(window.release().isEmpty());
+    }
+
+    @Test
+    public void testReleaseAfterFailure() {
+        UploadWindow.Batch first = window.dispatch(2, -1, 2, 1000);
+        UploadWindow.Batch second = window.dispatch(4, -1, 2, 1000);
+        UploadWindow.Batch third = window.dispatch(6, -1, 2, 1000);
+
+        window.acknowledge(third);
+        window.fail(first);
+        assertFalse(window.canDispatch());
+        assertNull(window.release());
+
+        Pair<Long, Long> removed = window.acknowledge(second);
+        assertEquals((long) removed.first, -1);
+
+        List<UploadWindow.Batch> stranded = window.release();
+        assertEquals(stranded.size(), 2);
+        assertSame(stranded.get(0), second);
+        assertSame(stranded.get(1), third);
+
+        // dispatching starts over from the beginning of the tables
+        assertTrue(window.isEmpty());
+        assertTrue(window.canDispatch());
+        assertEquals(window.getDispatchedEventId(), -1);
+    }
+}